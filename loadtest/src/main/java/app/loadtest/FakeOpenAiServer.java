@@ -0,0 +1,183 @@
+package app.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the OpenAI chat completions API.
+ *
+ * Serves {@code POST /v1/chat/completions}, streaming (SSE chunks) or not depending on the
+ * request's {@code stream} flag, with a configurable time to first token, token rate,
+ * jitter and error injection. Point the worker at it with
+ * {@code OPENAI_BASE_URL=http://localhost:8090/v1} and any {@code OPENAI_API_KEY}.
+ *
+ * Settings (environment variable or -D system property):
+ * <ul>
+ *   <li>FAKE_PORT (8090)</li>
+ *   <li>FAKE_TTFT_MS (300): delay before the first token</li>
+ *   <li>FAKE_TOKENS_PER_SEC (50): streaming rate per response</li>
+ *   <li>FAKE_JITTER_MS (10): random +/- delay added to every token</li>
+ *   <li>FAKE_REPLY_TOKENS (120): tokens per reply</li>
+ *   <li>FAKE_ERROR_RATE (0.0): fraction of requests answered with HTTP 500</li>
+ *   <li>FAKE_ABORT_RATE (0.0): fraction of streams that fail halfway with an error event</li>
+ * </ul>
+ */
+public class FakeOpenAiServer {
+
+    private static final Pattern STREAM_TRUE = Pattern.compile("\"stream\"\\s*:\\s*true");
+    private static final String[] WORDS = {
+            "Entiendo", "tus", "síntomas", "y", "te", "recomiendo", "que", "acudas", "a",
+            "un", "centro", "médico", "si", "el", "dolor", "persiste", "o", "empeora", "."
+    };
+
+    private final long ttftMillis;
+    private final double tokensPerSecond;
+    private final long jitterMillis;
+    private final int replyTokens;
+    private final double errorRate;
+    private final double abortRate;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong active = new AtomicLong();
+
+    FakeOpenAiServer(long ttftMillis, double tokensPerSecond, long jitterMillis, int replyTokens,
+                     double errorRate, double abortRate) {
+        this.ttftMillis = ttftMillis;
+        this.tokensPerSecond = tokensPerSecond;
+        this.jitterMillis = jitterMillis;
+        this.replyTokens = replyTokens;
+        this.errorRate = errorRate;
+        this.abortRate = abortRate;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = Settings.intValue("FAKE_PORT", 8090);
+        FakeOpenAiServer fake = new FakeOpenAiServer(
+                Settings.longValue("FAKE_TTFT_MS", 300),
+                Settings.doubleValue("FAKE_TOKENS_PER_SEC", 50),
+                Settings.longValue("FAKE_JITTER_MS", 10),
+                Settings.intValue("FAKE_REPLY_TOKENS", 120),
+                Settings.doubleValue("FAKE_ERROR_RATE", 0.0),
+                Settings.doubleValue("FAKE_ABORT_RATE", 0.0));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext("/v1/chat/completions", fake::handle);
+        // One thread per open stream; responses spend most of their time sleeping
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        System.out.println("🤖 Fake OpenAI listening on :" + port + "/v1 (ttft=" + fake.ttftMillis
+                + "ms, " + fake.tokensPerSecond + " tok/s, errors=" + fake.errorRate + ", aborts=" + fake.abortRate + ")");
+
+        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() ->
+                        System.out.println("📊 requests=" + fake.requests.get() + " active=" + fake.active.get()),
+                10, 10, TimeUnit.SECONDS);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        active.incrementAndGet();
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            if (random.nextDouble() < errorRate) {
+                byte[] error = "{\"error\":{\"message\":\"injected failure\",\"type\":\"server_error\"}}"
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(500, error.length);
+                exchange.getResponseBody().write(error);
+                return;
+            }
+
+            if (STREAM_TRUE.matcher(body).find()) {
+                stream(exchange, random.nextDouble() < abortRate);
+            } else {
+                complete(exchange);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private void stream(HttpExchange exchange, boolean abort) throws IOException, InterruptedException {
+        String id = "chatcmpl-" + UUID.randomUUID();
+        long created = System.currentTimeMillis() / 1000;
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+
+        pause(ttftMillis);
+        long interval = tokensPerSecond > 0 ? (long) (1000 / tokensPerSecond) : 0;
+        int cutoff = abort ? replyTokens / 2 : Integer.MAX_VALUE;
+
+        for (int i = 0; i < replyTokens; i++) {
+            if (i > 0) {
+                pause(interval);
+            }
+            if (i == cutoff) {
+                // Mid-stream failure, reported the way the API reports it
+                send(out, "{\"error\":{\"message\":\"injected stream abort\",\"type\":\"server_error\"}}");
+                return;
+            }
+            String token = WORDS[i % WORDS.length] + " ";
+            send(out, chunk(id, created, "{\"content\":\"" + token + "\"}", "null"));
+        }
+        send(out, chunk(id, created, "{}", "\"stop\""));
+        send(out, "[DONE]");
+    }
+
+    private void complete(HttpExchange exchange) throws IOException, InterruptedException {
+        pause(ttftMillis);
+        StringBuilder reply = new StringBuilder();
+        for (int i = 0; i < replyTokens; i++) {
+            reply.append(WORDS[i % WORDS.length]).append(' ');
+        }
+        String json = "{\"id\":\"chatcmpl-" + UUID.randomUUID() + "\",\"object\":\"chat.completion\","
+                + "\"created\":" + System.currentTimeMillis() / 1000 + ",\"model\":\"gpt-4.1\","
+                + "\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"" + reply.toString().trim()
+                + "\",\"refusal\":null},\"logprobs\":null,\"finish_reason\":\"stop\"}],"
+                + "\"usage\":{\"prompt_tokens\":0,\"completion_tokens\":" + replyTokens
+                + ",\"total_tokens\":" + replyTokens + "}}";
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static String chunk(String id, long created, String delta, String finishReason) {
+        return "{\"id\":\"" + id + "\",\"object\":\"chat.completion.chunk\",\"created\":" + created
+                + ",\"model\":\"gpt-4.1\",\"choices\":[{\"index\":0,\"delta\":" + delta
+                + ",\"logprobs\":null,\"finish_reason\":" + finishReason + "}]}";
+    }
+
+    private static void send(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void pause(long millis) throws InterruptedException {
+        long jitter = jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(-jitterMillis, jitterMillis + 1) : 0;
+        long total = millis + jitter;
+        if (total > 0) {
+            Thread.sleep(total);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package app.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Thread-safe collector of latency samples with exact percentiles.
+ */
+final class LatencyRecorder {
+
+    private long[] samples = new long[1024];
+    private int count;
+
+    synchronized void record(long millis) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = millis;
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    /**
+     * @param p percentile in [0, 100]
+     */
+    synchronized long percentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    String summary() {
+        return "p50=" + percentile(50) + "ms p90=" + percentile(90) + "ms p99=" + percentile(99)
+                + "ms max=" + percentile(100) + "ms (n=" + count() + ")";
+    }
+}
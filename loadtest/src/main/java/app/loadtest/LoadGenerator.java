@@ -0,0 +1,260 @@
+package app.loadtest;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end load generator for the producer.
+ *
+ * Every simulated user opens {@code GET /chat/stream/{userId}}, posts a message to
+ * {@code POST /chat} and reads the SSE reply until the "done" event, then thinks for a
+ * while and repeats. Reports time to first token, end-to-end latency, token throughput
+ * and the depth of the process queues: every priority lane plus the workers' shard queues,
+ * summed (sampled from the RabbitMQ management API).
+ *
+ * Settings (environment variable or -D system property):
+ * <ul>
+ *   <li>LOAD_BASE_URL (http://localhost:8080): producer</li>
+ *   <li>LOAD_USERS (1000), LOAD_MESSAGES_PER_USER (5)</li>
+ *   <li>LOAD_RAMP_UP_MS (10000): users are started evenly over this period</li>
+ *   <li>LOAD_THINK_MS (1000): mean pause between a reply and the next message</li>
+ *   <li>LOAD_TIMEOUT_MS (120000): give up on a reply after this long</li>
+ *   <li>RABBIT_MGMT_URL (http://localhost:15672), RABBIT_USER / RABBIT_PASS (guest),
+ *       LOAD_QUEUE_PATTERN (regex over queue names, default: the process lanes and shard queues)</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    private static final Pattern QUEUE_OBJECT = Pattern.compile("\\{[^{}]*}");
+    private static final Pattern QUEUE_NAME = Pattern.compile("\"name\":\"([^\"]*)\"");
+    private static final Pattern QUEUE_MESSAGES = Pattern.compile("\"messages\":(\\d+)");
+
+    private final String baseUrl;
+    private final int users;
+    private final int messagesPerUser;
+    private final long rampUpMillis;
+    private final long thinkMillis;
+    private final long timeoutMillis;
+
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private final LatencyRecorder ttft = new LatencyRecorder();
+    private final LatencyRecorder endToEnd = new LatencyRecorder();
+    private final LatencyRecorder streamRate = new LatencyRecorder(); // tokens/sec per reply
+    private final LatencyRecorder queueDepth = new LatencyRecorder();
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong(); // 429 from admission control
+
+    LoadGenerator(String baseUrl, int users, int messagesPerUser, long rampUpMillis,
+                  long thinkMillis, long timeoutMillis) {
+        this.baseUrl = baseUrl.replaceAll("/+$", "");
+        this.users = users;
+        this.messagesPerUser = messagesPerUser;
+        this.rampUpMillis = rampUpMillis;
+        this.thinkMillis = thinkMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator load = new LoadGenerator(
+                Settings.value("LOAD_BASE_URL", "http://localhost:8080"),
+                Settings.intValue("LOAD_USERS", 1000),
+                Settings.intValue("LOAD_MESSAGES_PER_USER", 5),
+                Settings.longValue("LOAD_RAMP_UP_MS", 10000),
+                Settings.longValue("LOAD_THINK_MS", 1000),
+                Settings.longValue("LOAD_TIMEOUT_MS", 120000));
+        load.run(Settings.value("RABBIT_MGMT_URL", "http://localhost:15672"),
+                Settings.value("RABBIT_USER", "guest"),
+                Settings.value("RABBIT_PASS", "guest"),
+                Pattern.compile(Settings.value("LOAD_QUEUE_PATTERN", "chat\\.process\\.(queue(\\..+)?|shard\\..+)")));
+    }
+
+    void run(String mgmtUrl, String mgmtUser, String mgmtPass, Pattern queues) throws InterruptedException {
+        System.out.println("🚀 " + users + " users x " + messagesPerUser + " messages against " + baseUrl);
+
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        ExecutorService userThreads = Executors.newFixedThreadPool(users);
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+        CountDownLatch finished = new CountDownLatch(users);
+        long start = System.currentTimeMillis();
+
+        monitor.scheduleAtFixedRate(() -> {
+            long depth = sampleQueueDepth(mgmtUrl, mgmtUser, mgmtPass, queues);
+            if (depth >= 0) {
+                queueDepth.record(depth);
+            }
+            double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+            System.out.printf("📊 %.0fs completed=%d failed=%d rejected=%d tokens/s=%.0f queue=%d ttft %s%n",
+                    elapsed, completed.get(), failed.get(), rejected.get(), tokens.get() / elapsed, depth,
+                    ttft.summary());
+        }, 5, 5, TimeUnit.SECONDS);
+
+        for (int u = 0; u < users; u++) {
+            String userId = "load-" + runId + "-" + u;
+            long delay = users > 1 ? rampUpMillis * u / (users - 1) : 0;
+            userThreads.execute(() -> {
+                try {
+                    Thread.sleep(delay);
+                    for (int m = 0; m < messagesPerUser; m++) {
+                        converse(userId, m);
+                        Thread.sleep(thinkMillis > 0 ? ThreadLocalRandom.current().nextLong(thinkMillis * 2) : 0);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+
+        finished.await();
+        long wall = System.currentTimeMillis() - start;
+        monitor.shutdownNow();
+        userThreads.shutdownNow();
+
+        System.out.println();
+        System.out.println("==================== RESULTS ====================");
+        System.out.printf("Duration:          %.1fs%n", wall / 1000.0);
+        System.out.println("Replies:           " + completed.get() + " ok, " + failed.get() + " failed, "
+                + rejected.get() + " rejected (429)");
+        System.out.println("Time to 1st token: " + ttft.summary());
+        System.out.println("End-to-end:        " + endToEnd.summary());
+        System.out.printf("Throughput:        %.0f tokens/s, %.1f replies/s%n",
+                tokens.get() * 1000.0 / wall, completed.get() * 1000.0 / wall);
+        System.out.println("Per-stream tok/s:  p50=" + streamRate.percentile(50) + " p10=" + streamRate.percentile(10));
+        System.out.println("Queue depth:       p50=" + queueDepth.percentile(50) + " max=" + queueDepth.percentile(100)
+                + " (samples=" + queueDepth.count() + ")");
+    }
+
+    /**
+     * One request/reply: subscribe, post, read tokens until "done".
+     */
+    private void converse(String userId, int index) {
+        InputStream body = null;
+        try {
+            HttpRequest subscribe = HttpRequest.newBuilder(URI.create(baseUrl + "/chat/stream/" + userId))
+                    .header("Accept", "text/event-stream")
+                    .timeout(Duration.ofMillis(timeoutMillis))
+                    .GET()
+                    .build();
+            // Returns once headers arrive, i.e. after the producer registered the emitter
+            HttpResponse<InputStream> stream = http.send(subscribe, HttpResponse.BodyHandlers.ofInputStream());
+            body = stream.body();
+            if (stream.statusCode() != 200) {
+                throw new IllegalStateException("stream returned " + stream.statusCode());
+            }
+
+            String json = "{\"userId\":\"" + userId + "\",\"message\":\"Hola, tengo dolor de cabeza y fiebre (" + index + ")\"}";
+            HttpRequest post = HttpRequest.newBuilder(URI.create(baseUrl + "/chat"))
+                    .header("Content-Type", "application/json")
+                    .timeout(Duration.ofMillis(timeoutMillis))
+                    .POST(HttpRequest.BodyPublishers.ofString(json))
+                    .build();
+            long sentAt = System.currentTimeMillis();
+            HttpResponse<Void> posted = http.send(post, HttpResponse.BodyHandlers.discarding());
+            if (posted.statusCode() == 429) {
+                // Shed by admission control: counted apart, no reply will come
+                rejected.incrementAndGet();
+                return;
+            }
+            if (posted.statusCode() / 100 != 2) {
+                throw new IllegalStateException("post returned " + posted.statusCode());
+            }
+
+            long firstTokenAt = 0;
+            long count = 0;
+            String event = "message";
+            BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("event:")) {
+                    event = line.substring(6).trim();
+                } else if (line.startsWith("data:")) {
+                    if ("done".equals(event)) {
+                        long now = System.currentTimeMillis();
+                        endToEnd.record(now - sentAt);
+                        if (firstTokenAt > 0 && now > firstTokenAt) {
+                            streamRate.record(count * 1000 / (now - firstTokenAt));
+                        }
+                        completed.incrementAndGet();
+                        return;
+                    }
+                    if (firstTokenAt == 0) {
+                        firstTokenAt = System.currentTimeMillis();
+                        ttft.record(firstTokenAt - sentAt);
+                    }
+                    count++;
+                    tokens.incrementAndGet();
+                } else if (line.isEmpty()) {
+                    event = "message";
+                }
+            }
+            throw new IllegalStateException("stream closed before done");
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            if (failed.get() <= 10) {
+                System.err.println("⚠️ " + userId + ": " + e.getMessage());
+            }
+        } finally {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (Exception ignored) {
+                    // connection is discarded either way
+                }
+            }
+        }
+    }
+
+    /**
+     * @return messages ready or unacked in all queues whose name matches, or -1 if the
+     *         management API is unreachable
+     */
+    private long sampleQueueDepth(String mgmtUrl, String user, String pass, Pattern queues) {
+        try {
+            String auth = Base64.getEncoder().encodeToString((user + ":" + pass).getBytes(StandardCharsets.UTF_8));
+            HttpRequest request = HttpRequest.newBuilder(URI.create(mgmtUrl + "/api/queues/%2F?columns=name,messages"))
+                    .header("Authorization", "Basic " + auth)
+                    .timeout(Duration.ofSeconds(2))
+                    .build();
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                return -1;
+            }
+            long depth = 0;
+            Matcher queue = QUEUE_OBJECT.matcher(response.body());
+            while (queue.find()) {
+                Matcher name = QUEUE_NAME.matcher(queue.group());
+                Matcher messages = QUEUE_MESSAGES.matcher(queue.group());
+                if (name.find() && queues.matcher(name.group(1)).matches() && messages.find()) {
+                    depth += Long.parseLong(messages.group(1));
+                }
+            }
+            return depth;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package app.loadtest;
+
+/**
+ * Reads a setting from a -D system property, then the environment, then the default.
+ */
+final class Settings {
+
+    private Settings() {
+    }
+
+    static String value(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.isBlank()) {
+            value = System.getenv(name);
+        }
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    static int intValue(String name, int defaultValue) {
+        return Integer.parseInt(value(name, String.valueOf(defaultValue)));
+    }
+
+    static long longValue(String name, long defaultValue) {
+        return Long.parseLong(value(name, String.valueOf(defaultValue)));
+    }
+
+    static double doubleValue(String name, double defaultValue) {
+        return Double.parseDouble(value(name, String.valueOf(defaultValue)));
+    }
+}
@@ -48,12 +48,25 @@ export default function Chat() {
 
     // Send to backend
     try {
-      await fetch(`${process.env.NEXT_PUBLIC_API_BASE_URL}/chat`, {
+      const res = await fetch(`${process.env.NEXT_PUBLIC_API_BASE_URL}/chat`, {
         method: "POST",
         headers: { "Content-Type": "application/json" },
         body: JSON.stringify({ userId, message: content }),
       });
 
+      // Busy or rate limited: the message was not accepted
+      if (res.status === 429) {
+        const retryAfter = res.headers.get("Retry-After") || "unos";
+        setMessages((prev) => [
+          ...prev,
+          {
+            role: "assistant",
+            content: `El servicio está ocupado. Intenta de nuevo en ${retryAfter} segundos.`,
+          },
+        ]);
+        return;
+      }
+
       // Start streaming assistant response
       startStreaming();
     } catch (err) {
@@ -61,6 +74,16 @@ export default function Chat() {
     }
   }
 
+  // Ask the backend to stop the reply; it keeps what was generated and ends the stream
+  async function stopGenerating() {
+    if (!userId) return;
+    try {
+      await fetch(`${process.env.NEXT_PUBLIC_API_BASE_URL}/chat/stream/${userId}`, { method: "DELETE" });
+    } catch (err) {
+      console.error("Error cancelling reply:", err);
+    }
+  }
+
   // Allow pressing Enter to send
   function handleKeyDown(e) {
     if (e.key === "Enter" && !e.shiftKey) {
@@ -104,7 +127,7 @@ export default function Chat() {
       if (updated.length && updated[updated.length - 1].role === "assistant") {
         updated[updated.length - 1].content = partial;
       } else {
-        updated.push({ role: "assistant", content: partial });
+        updated.push({ role: "assistant", content: partial, streaming: true });
       }
       return updated;
     });
@@ -114,9 +137,22 @@ export default function Chat() {
     console.log("✅ Stream complete (done event)");
     es.close();
     setIsStreaming(false);
+    setMessages((prev) => prev.map((m) => (m.streaming ? { ...m, streaming: false } : m)));
+  });
+
+  // A newer message replaced the reply being streamed: drop it, the new reply answers both
+  es.addEventListener("superseded", () => {
+    console.log("↩️ Reply superseded by a newer message");
+    partial = "";
+    setMessages((prev) => prev.filter((m) => !m.streaming));
   });
 
   es.onerror = () => {
+    // While CONNECTING the browser retries on its own and resumes via Last-Event-ID
+    if (es.readyState !== EventSource.CLOSED) {
+      console.warn("🔄 SSE connection lost, reconnecting...");
+      return;
+    }
     console.error("❌ SSE connection error");
     es.close();
     eventSourceRef.current = null;
@@ -136,8 +172,8 @@ export default function Chat() {
       <div className="border p-3 rounded-lg h-96 overflow-y-auto bg-gray-50 mb-4 shadow-inner prose prose-sm max-w-none">
         {messages.length > 0 ? (
           messages.map((m, i) => (
-            <div key={i} className={`mb-2 ${m.role === "assistant" ? "text-blue-800" : "text-gray-800"}`}>
-              <b>{m.role}:</b>{" "}
+            <div key={i} className={`mb-2 ${m.role.startsWith("assistant") ? "text-blue-800" : "text-gray-800"}`}>
+              <b>{m.role === "assistant_partial" ? "assistant (incompleta)" : m.role}:</b>{" "}
               <ReactMarkdown remarkPlugins={[remarkGfm]}>{m.content}</ReactMarkdown>
             </div>
           ))
@@ -164,6 +200,11 @@ export default function Chat() {
         >
           {isStreaming ? "Generating..." : "Send"}
         </button>
+        {isStreaming && (
+          <button onClick={stopGenerating} className="px-4 py-2 rounded text-white bg-red-600 hover:bg-red-700">
+            Stop
+          </button>
+        )}
       </div>
     </div>
   );
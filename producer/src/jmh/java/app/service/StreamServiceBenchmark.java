@@ -0,0 +1,97 @@
+package app.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token fan-out in StreamService: replay-buffer append plus enqueue on every connection
+ * of the user, with writer threads draining into emitters that build and discard each
+ * event. {@code buildTokenEvent} isolates the per-token SSE event construction,
+ * including the non-breaking-space rewrite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamServiceBenchmark {
+
+    @Param({"1", "4"})
+    public int connections;
+
+    private StreamService streamService;
+    private final String generationId = UUID.randomUUID().toString();
+    private final String token = "recomiendo que acudas ";
+    private List<String> frame;
+
+    @Setup
+    public void setup() {
+        streamService = new StreamService(new SimpleMeterRegistry(), 256, "coalesce", 0, 4, 2048, 60000);
+        for (int i = 0; i < connections; i++) {
+            streamService.connect("user-42", null, new DiscardingEmitter());
+        }
+        frame = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            frame.add(i % 2 == 0 ? "síntoma " : "fiebre ");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        streamService.complete("user-42", generationId);
+        streamService.shutdown();
+    }
+
+    @Benchmark
+    public void sendToken() {
+        streamService.sendToken("user-42", generationId, token);
+    }
+
+    @Benchmark
+    public void sendFrame() {
+        streamService.sendTokens("user-42", generationId, frame);
+    }
+
+    @Benchmark
+    public Set<?> buildTokenEvent() {
+        return SseEmitter.event()
+                .id(generationId + ":" + 1)
+                .name("message")
+                .data(token.replace(" ", "\u00A0"))
+                .build();
+    }
+
+    /**
+     * Emitter that renders each event the way the servlet path would, then drops it.
+     */
+    private static final class DiscardingEmitter extends SseEmitter {
+
+        DiscardingEmitter() {
+            super(0L);
+        }
+
+        @Override
+        public void send(SseEventBuilder builder) {
+            builder.build().forEach(part -> part.getData().hashCode());
+        }
+    }
+}
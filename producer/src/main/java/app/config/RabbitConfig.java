@@ -1,30 +1,53 @@
 package app.config;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import app.model.TriagePriority;
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 /**
  * RabbitMQ configuration for the producer (frontend-facing) application.
  *
  * Responsibilities:
- *  - PROCESS_QUEUE: where workers consume messages to generate AI responses.
- *  - REPL_EXCHANGE: fanout exchange for database replication.
+ *  - PROCESS_QUEUE: where workers consume messages to generate AI responses (routine lane),
+ *    with PROCESS_QUEUE_URGENT and PROCESS_QUEUE_HIGH as the lanes for triaged messages.
+ *  - PROCESS_HASH_EXCHANGE: consistent-hash exchange that shards messages by user across the
+ *    workers' own queues, used instead of the lanes when chat.process.routing=sharded.
+ *  - REPL_EXCHANGE: fanout exchange for database replication (one durable queue per node).
  *  - STREAM_QUEUE: ephemeral queue for streaming AI response tokens to this producer instance only.
+ *  - CONTROL_EXCHANGE: fanout exchange for control events to every worker (generation cancels).
  */
 @Configuration
 public class RabbitConfig {
 
+    private static final Logger log = LoggerFactory.getLogger(RabbitConfig.class);
+
     public static final String PROCESS_QUEUE = "chat.process.queue";
+    public static final String PROCESS_QUEUE_URGENT = "chat.process.queue.urgent";
+    public static final String PROCESS_QUEUE_HIGH = "chat.process.queue.high";
+    public static final String PROCESS_HASH_EXCHANGE = "chat.process.hash.exchange";
+    public static final String PROCESS_UNROUTED_EXCHANGE = "chat.process.unrouted.exchange";
     public static final String REPL_EXCHANGE = "chat.replication.exchange";
     public static final String REPL_QUEUE_PREFIX = "chat.replication.queue";
+    public static final String REPL_DEAD_EXCHANGE = "chat.replication.dead.exchange";
+    public static final String REPL_DEAD_QUEUE = "chat.replication.dead";
     public static final String STREAM_QUEUE_PREFIX = "chat.stream.queue";
+    public static final String ANTI_ENTROPY_EXCHANGE = "chat.antientropy.exchange";
+    public static final String ANTI_ENTROPY_QUEUE_PREFIX = "chat.antientropy.queue";
+    public static final String CONTROL_EXCHANGE = "chat.control.exchange";
 
     // -------------------------------
     // Worker processing queue
@@ -34,6 +57,70 @@ public class RabbitConfig {
         return new Queue(PROCESS_QUEUE, true);
     }
 
+    // -------------------------------
+    // Priority lanes: separate durable queues rather than x-max-priority, which cannot be
+    // added to the existing process queue, and whose ordering would be lost anyway once
+    // deliveries are prefetched into the worker's scheduler
+    // -------------------------------
+    @Bean
+    public Queue urgentProcessQueue() {
+        return new Queue(PROCESS_QUEUE_URGENT, true);
+    }
+
+    @Bean
+    public Queue highProcessQueue() {
+        return new Queue(PROCESS_QUEUE_HIGH, true);
+    }
+
+    /**
+     * Process-queue lane for messages of the given priority.
+     */
+    public static String processQueue(TriagePriority priority) {
+        return switch (priority) {
+            case URGENT -> PROCESS_QUEUE_URGENT;
+            case HIGH -> PROCESS_QUEUE_HIGH;
+            case ROUTINE -> PROCESS_QUEUE;
+        };
+    }
+
+    // -------------------------------
+    // Sharded processing: the rabbitmq_consistent_hash_exchange plugin hashes the routing key
+    // (the user id) onto a ring of worker shard queues, each bound with its number of virtual
+    // nodes. Only declared when sharding is on, as brokers without the plugin refuse the type.
+    // While no worker is on the ring, messages fall through its alternate exchange to the
+    // routine lane, so the broker never confirms a publish it could not route. Workers must
+    // declare both exchanges with the same arguments.
+    // -------------------------------
+    @Bean
+    @ConditionalOnProperty(name = "chat.process.routing", havingValue = "sharded")
+    public CustomExchange processHashExchange() {
+        return new CustomExchange(PROCESS_HASH_EXCHANGE, "x-consistent-hash", true, false,
+                Map.of("alternate-exchange", PROCESS_UNROUTED_EXCHANGE));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "chat.process.routing", havingValue = "sharded")
+    public FanoutExchange processUnroutedExchange() {
+        return new FanoutExchange(PROCESS_UNROUTED_EXCHANGE, true, false);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "chat.process.routing", havingValue = "sharded")
+    public Binding processUnroutedBinding(Queue processQueue, FanoutExchange processUnroutedExchange) {
+        return BindingBuilder.bind(processQueue).to(processUnroutedExchange);
+    }
+
+    /**
+     * Message priority carrying the triage lane through a shard queue, which holds every lane.
+     */
+    public static int processPriority(TriagePriority priority) {
+        return switch (priority) {
+            case URGENT -> 2;
+            case HIGH -> 1;
+            case ROUTINE -> 0;
+        };
+    }
+
     // -------------------------------
     // Replication fanout exchange
     // -------------------------------
@@ -43,17 +130,18 @@ public class RabbitConfig {
     }
 
     // -------------------------------
-    // Ephemeral replication queue for this producer instance
+    // Durable replication queue for this producer node
     // -------------------------------
     @Bean
-    public Queue replicationQueue() {
-        String hostname = "unknown";
-        try { hostname = InetAddress.getLocalHost().getHostName(); } catch (Exception ignored) {}
-        hostname = hostname.replaceAll("[^a-zA-Z0-9_.-]", "_");
-
-        String uniqueQueueName = REPL_QUEUE_PREFIX + "." + hostname + "." + UUID.randomUUID();
-        System.out.println("[RabbitConfig] Declared ephemeral replication queue: " + uniqueQueueName);
-        return new Queue(uniqueQueueName, false, false, true);
+    public Queue replicationQueue(@Value("${chat.node-id}") String nodeId,
+                                  @Value("${chat.replication.queue-expires-ms:86400000}") long expiresMs) {
+        // Stable per-node name: a restarted node resumes from the backlog buffered while it was down
+        String queueName = REPL_QUEUE_PREFIX + ".producer." + nodeId.replaceAll("[^a-zA-Z0-9_.-]", "_");
+        log.info("Declared durable replication queue {}", queueName);
+        return QueueBuilder.durable(queueName)
+                .expires((int) Math.min(expiresMs, Integer.MAX_VALUE)) // removed once a node has been gone this long
+                .deadLetterExchange(REPL_DEAD_EXCHANGE)
+                .build();
     }
 
     @Bean
@@ -61,6 +149,80 @@ public class RabbitConfig {
         return BindingBuilder.bind(replicationQueue).to(replicationExchange);
     }
 
+    /**
+     * Replication messages that cannot be applied (undecodable, or rejected by the database)
+     * are parked in one durable queue shared by all nodes, for inspection and replay.
+     */
+    @Bean
+    public FanoutExchange replicationDeadExchange() {
+        return new FanoutExchange(REPL_DEAD_EXCHANGE, true, false);
+    }
+
+    @Bean
+    public Queue replicationDeadQueue() {
+        return new Queue(REPL_DEAD_QUEUE, true);
+    }
+
+    @Bean
+    public Binding replicationDeadBinding(Queue replicationDeadQueue, FanoutExchange replicationDeadExchange) {
+        return BindingBuilder.bind(replicationDeadQueue).to(replicationDeadExchange);
+    }
+
+    // -------------------------------
+    // Anti-entropy control channel: root announcements (fanout) and direct replies
+    // -------------------------------
+    @Bean
+    public FanoutExchange antiEntropyExchange() {
+        return new FanoutExchange(ANTI_ENTROPY_EXCHANGE, true, false);
+    }
+
+    @Bean
+    public Queue antiEntropyQueue(@Value("${chat.node-id}") String nodeId) {
+        String queueName = ANTI_ENTROPY_QUEUE_PREFIX + ".producer." + nodeId.replaceAll("[^a-zA-Z0-9_.-]", "_");
+        return new Queue(queueName, false, false, true);
+    }
+
+    @Bean
+    public Binding antiEntropyBinding(Queue antiEntropyQueue, FanoutExchange antiEntropyExchange) {
+        return BindingBuilder.bind(antiEntropyQueue).to(antiEntropyExchange);
+    }
+
+    // -------------------------------
+    // Control channel to the workers (publish only)
+    // -------------------------------
+    @Bean
+    public FanoutExchange controlExchange() {
+        return new FanoutExchange(CONTROL_EXCHANGE, true, false);
+    }
+
+    // -------------------------------
+    // Batched replication consumer
+    // -------------------------------
+    /**
+     * Listener container for the replication queue.
+     *
+     * Deliveries are handed to the listener in batches of up to {@code batch-size}
+     * messages, or whatever arrived within {@code receive-timeout-ms}, and acked
+     * together after the listener (and its transaction) returns.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory replicationListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            ConnectionFactory connectionFactory,
+            @Value("${chat.replication.batch-size:500}") int batchSize,
+            @Value("${chat.replication.receive-timeout-ms:50}") long receiveTimeout) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(receiveTimeout);
+        factory.setPrefetchCount(Math.max(250, batchSize * 2));
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        factory.setDefaultRequeueRejected(false); // to the dead-letter queue; see ReplicationListener
+        return factory;
+    }
+
     // -------------------------------
     // Ephemeral stream queue for this producer instance
     // -------------------------------
@@ -71,7 +233,7 @@ public class RabbitConfig {
         hostname = hostname.replaceAll("[^a-zA-Z0-9_.-]", "_");
     
         String queueName = STREAM_QUEUE_PREFIX + "." + hostname + "." + UUID.randomUUID();
-        System.out.println("[RabbitConfig] Declared ephemeral stream queue: " + queueName);
+        log.info("Declared ephemeral stream queue {}", queueName);
     
         return new Queue(queueName, false, false, true); // auto-delete
     }
@@ -79,11 +241,12 @@ public class RabbitConfig {
 
 
     // -------------------------------
-    // JSON converter
+    // Message converter: binary or JSON, negotiated by content type
     // -------------------------------
     @Bean
-    public Jackson2JsonMessageConverter jackson2JsonMessageConverter() {
-        return new Jackson2JsonMessageConverter();
+    public WireMessageConverter wireMessageConverter(@Value("${chat.wire.format:binary}") String format) {
+        // Use json until every node understands binary; incoming messages are decoded either way
+        return new WireMessageConverter(WireMessageConverter.Format.valueOf(format.trim().toUpperCase(Locale.ROOT)));
     }
 
     // -------------------------------
@@ -91,9 +254,10 @@ public class RabbitConfig {
     // -------------------------------
     @Bean
     public RabbitTemplate rabbitTemplate(ConnectionFactory connectionFactory,
-                                         Jackson2JsonMessageConverter converter) {
+                                         WireMessageConverter converter) {
         RabbitTemplate rt = new RabbitTemplate(connectionFactory);
         rt.setMessageConverter(converter);
+        rt.setBeforePublishPostProcessors(Tracing::propagate);
         return rt;
     }
 }
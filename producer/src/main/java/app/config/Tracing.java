@@ -0,0 +1,64 @@
+package app.config;
+
+import org.slf4j.MDC;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+
+import java.util.UUID;
+
+/**
+ * Correlation id that follows one chat request from {@code POST /chat} through the
+ * process queue to the worker and back on the stream queue.
+ *
+ * Within a thread the id lives in the SLF4J MDC (so every log line carries it); between
+ * services it travels as the {@value #AMQP_HEADER} message header, which
+ * {@link #propagate} adds to every publish made while an id is in scope.
+ */
+public final class Tracing {
+
+    public static final String HTTP_HEADER = "X-Trace-Id";
+    public static final String AMQP_HEADER = "x-trace-id";
+    public static final String MDC_KEY = "traceId";
+
+    private Tracing() {
+    }
+
+    public static String newTraceId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    public static String current() {
+        return MDC.get(MDC_KEY);
+    }
+
+    /**
+     * Puts the id in the MDC until the returned scope is closed. A null id leaves the MDC untouched.
+     */
+    public static MDC.MDCCloseable scope(String traceId) {
+        return traceId == null ? null : MDC.putCloseable(MDC_KEY, traceId);
+    }
+
+    /**
+     * Adds the given id to an outgoing message, for publishes from threads without an MDC scope.
+     */
+    public static MessagePostProcessor withTraceId(String traceId) {
+        return message -> {
+            if (traceId != null) {
+                message.getMessageProperties().setHeader(AMQP_HEADER, traceId);
+            }
+            return message;
+        };
+    }
+
+    /**
+     * Before-publish hook for the RabbitTemplate: copies the MDC id into the message
+     * unless the caller has already set one.
+     */
+    public static Message propagate(Message message) {
+        String traceId = current();
+        if (traceId != null && message.getMessageProperties().getHeader(AMQP_HEADER) == null) {
+            message.getMessageProperties().setHeader(AMQP_HEADER, traceId);
+        }
+        return message;
+    }
+}
@@ -1,39 +1,75 @@
 package app.controller;
 
 import app.config.RabbitConfig;
+import app.config.Tracing;
 import app.model.ChatMessage;
-import app.repo.ChatMessageRepository;
+import app.model.ProcessMessage;
+import app.model.ReplicationMessage;
+import app.model.TriagePriority;
+import app.model.ChatMessageView;
+import app.repo.ChatMessageStore;
+import app.repo.ColdHistoryStore;
+import app.repo.Outbox;
+import app.repo.WriteBehindPersister;
+import app.service.AdmissionControl;
+import app.service.OutboxRelay;
+import app.service.ProcessRouter;
+import app.service.TriageClassifier;
 import org.springframework.amqp.core.Queue;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 
 /**
  * REST controller responsible for handling chat interactions.
  *
  * Responsibilities:
  *  - Accepts user messages via POST requests.
- *  - Persists messages to the database.
- *  - Sends messages to RabbitMQ for AI processing.
- *  - Sends replication messages for distributed persistence.
- *  - Returns chat history for a specific user.
+ *  - Persists messages to the database through the write-behind group commit.
+ *  - Triages each message and stages, in the same transaction, the outbox publishes for
+ *    AI processing (on the lane of its priority, or the user's shard) and replication.
+ *  - Returns chat history for a specific user, one cursor-paginated page at a time,
+ *    falling back to the cold tier past the hot window.
  */
 @RestController
 @RequestMapping("/chat")
-@CrossOrigin(origins = "${frontend.url}") // Allow CORS from configured frontend
+@CrossOrigin(origins = "${frontend.url}", exposedHeaders = {ChatController.NEXT_CURSOR_HEADER, Tracing.HTTP_HEADER, HttpHeaders.RETRY_AFTER}) // Allow CORS from configured frontend
 public class ChatController {
 
-    private final ChatMessageRepository repo;
-    private final RabbitTemplate rabbitTemplate;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 500;
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final Pattern TRACE_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+    private final ChatMessageStore store;
+    private final ColdHistoryStore cold;
     private final Queue streamQueue; // Producer's stream queue
+    private final WriteBehindPersister persister;
+    private final Outbox outbox;
+    private final OutboxRelay outboxRelay;
+    private final AdmissionControl admission;
+    private final TriageClassifier triage;
+    private final ProcessRouter router;
 
-    public ChatController(ChatMessageRepository repo, RabbitTemplate rabbitTemplate, Queue streamQueue) {
-        this.repo = repo;
-        this.rabbitTemplate = rabbitTemplate;
+    public ChatController(ChatMessageStore store, ColdHistoryStore cold, Queue streamQueue,
+                          WriteBehindPersister persister, Outbox outbox, OutboxRelay outboxRelay,
+                          AdmissionControl admission, TriageClassifier triage, ProcessRouter router) {
+        this.store = store;
+        this.cold = cold;
         this.streamQueue = streamQueue;
+        this.persister = persister;
+        this.outbox = outbox;
+        this.outboxRelay = outboxRelay;
+        this.admission = admission;
+        this.triage = triage;
+        this.router = router;
     }
 
     /**
@@ -41,55 +77,101 @@ public class ChatController {
      *
      * Receives a chat message from the frontend.
      *  1. Validates input (must have userId and message).
-     *  2. Saves the message to the database.
-     *  3. Publishes the message to the processing queue for AI workers.
-     *  4. Sends replication message for database consistency.
+     *  2. Classifies the message's triage priority.
+     *  3. Applies admission control: 429 with Retry-After when the user or this node is
+     *     over its rate, or when the process queue's projected wait exceeds the SLO
+     *     (urgent messages are exempt from the last two).
+     *  4. Stages the message for AI workers on its priority lane (or its user's shard), and the replication message.
+     *  5. Commits the message and both publishes in the next group commit.
+     *  6. Responds once committed; the outbox relay publishes them with confirms.
+     *
+     * The request thread is released while the commit is pending. The request's
+     * X-Trace-Id (or a new one) is attached to both messages and returned.
      */
     @PostMapping
-    public ResponseEntity<Map<String, String>> postMessage(@RequestBody Map<String, String> body) {
+    public CompletableFuture<ResponseEntity<Map<String, String>>> postMessage(
+            @RequestBody Map<String, String> body,
+            @RequestHeader(value = Tracing.HTTP_HEADER, required = false) String traceId) {
         String userId = body.get("userId");
         String content = body.get("message");
 
         if (userId == null || content == null) {
-            return ResponseEntity.badRequest().body(Map.of("error", "userId and message required"));
+            return CompletableFuture.completedFuture(
+                    ResponseEntity.badRequest().body(Map.of("error", "userId and message required")));
+        }
+
+        String trace = traceId == null || !TRACE_ID.matcher(traceId).matches() ? Tracing.newTraceId() : traceId;
+        TriagePriority priority = triage.classify(userId, content);
+        AdmissionControl.Decision admitted = admission.admit(userId, priority);
+        if (!admitted.admitted()) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(admitted.retryAfterSeconds()))
+                    .header(Tracing.HTTP_HEADER, trace)
+                    .body(Map.of("error", admitted.reason())));
+        }
+        try (var traceScope = Tracing.scope(trace)) {
+            String id = UUID.randomUUID().toString();
+            return accept(id, userId, content, priority).handle((unused, error) -> {
+                if (error != null) {
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .header(Tracing.HTTP_HEADER, trace)
+                            .body(Map.of("error", "message could not be stored"));
+                }
+                outboxRelay.wakeUp();
+                return ResponseEntity.ok()
+                        .header(Tracing.HTTP_HEADER, trace)
+                        .body(Map.of("status", "queued", "id", id, "priority", priority.tag()));
+            });
         }
+    }
 
-        // 1️⃣ Save user message in database
-        String id = UUID.randomUUID().toString();
+    /**
+     * Queues the user message, with its processing and replication publishes, for the next group commit.
+     */
+    private CompletableFuture<Void> accept(String id, String userId, String content, TriagePriority priority) {
         ChatMessage msg = new ChatMessage(id, userId, "user", content, Instant.now());
-        repo.save(msg);
-
-        // 2️⃣ Send message to worker for AI processing
-        Map<String, Object> payload = Map.of(
-                "id", msg.getId(),
-                "userId", msg.getUserId(),
-                "role", msg.getRole(),
-                "content", msg.getContent(),
-                "createdAt", msg.getCreatedAt().toString(),
-                "streamQueueName", streamQueue.getName() // pass this producer's stream queue
-        );
-        rabbitTemplate.convertAndSend(RabbitConfig.PROCESS_QUEUE, payload);
-
-        // 3️⃣ Send replication message (database replication only)
-        rabbitTemplate.convertAndSend(RabbitConfig.REPL_EXCHANGE, "", Map.of(
-                "id", msg.getId(),
-                "userId", msg.getUserId(),
-                "role", msg.getRole(),
-                "content", msg.getContent(),
-                "createdAt", msg.getCreatedAt().toString()
-        ));
-
-        return ResponseEntity.ok(Map.of("status", "queued", "id", id));
+
+        List<Outbox.Publish> publishes = List.of(
+                // 1️⃣ Message for the workers' AI processing, routed by priority (and user when
+                // sharded); pass this producer's stream queue so the worker streams the reply back here
+                router.stage(ProcessMessage.of(msg, streamQueue.getName()), priority),
+                // 2️⃣ Replication message (database replication only)
+                outbox.stage(RabbitConfig.REPL_EXCHANGE, "", ReplicationMessage.of(msg)));
+
+        // 3️⃣ Save the message and its outbox rows atomically
+        return persister.submit(msg, publishes);
     }
 
     /**
      * Endpoint: GET /chat/{userId}
      *
-     * Retrieves the last 100 messages for the given user.
+     * Retrieves one page of the user's history, newest first.
+     *  - {@code limit}: page size (default 100, max 500).
+     *  - {@code before}: cursor {@code <createdAt>,<id>} of the oldest message already seen.
+     * When more messages may exist, the cursor for the next page is returned in the
+     * {@value #NEXT_CURSOR_HEADER} response header.
      */
     @GetMapping("/{userId}")
-    public List<Map<String, String>> getHistory(@PathVariable String userId) {
-        var list = repo.findTop100ByUserIdOrderByCreatedAtDesc(userId);
+    public ResponseEntity<List<Map<String, String>>> getHistory(@PathVariable String userId,
+                                                                @RequestParam(required = false) String before,
+                                                                @RequestParam(required = false) Integer limit) {
+        int size = limit == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        List<ChatMessageView> list;
+        if (before == null || before.isBlank()) {
+            list = historyPage(userId, null, null, size);
+        } else {
+            int comma = before.indexOf(',');
+            Instant createdAt;
+            try {
+                createdAt = Instant.parse(comma < 0 ? before : before.substring(0, comma));
+            } catch (DateTimeParseException e) {
+                return ResponseEntity.badRequest().build();
+            }
+            // Without an id, use the largest possible one so every message at that instant is "before"
+            String id = comma < 0 ? "\uFFFF" : before.substring(comma + 1);
+            list = historyPage(userId, createdAt, id, size);
+        }
 
         List<Map<String, String>> out = new ArrayList<>();
         for (var m : list) {
@@ -97,10 +179,38 @@ public class ChatController {
                     "id", m.getId(),
                     "userId", m.getUserId(),
                     "role", m.getRole(),
-                    "content", m.getContent(),
+                    "content", m.getContent() == null ? "" : m.getContent(),
                     "createdAt", m.getCreatedAt().toString()
             ));
         }
-        return out;
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (list.size() == size) {
+            ChatMessageView last = list.get(list.size() - 1);
+            response.header(NEXT_CURSOR_HEADER, last.getCreatedAt() + "," + last.getId());
+        }
+        return response.body(out);
+    }
+
+    /**
+     * A page from the hot store, completed from the cold tier when the hot one runs out.
+     * Both are read with the same cursor and merged, since a message can briefly be in
+     * both or a late replicated one can be hot but older than archived ones.
+     */
+    private List<ChatMessageView> historyPage(String userId, Instant createdAt, String id, int size) {
+        List<ChatMessageView> hot = store.historyPage(userId, createdAt, id, size);
+        if (hot.size() == size) {
+            return hot;
+        }
+        List<ChatMessage> older = cold.page(userId, createdAt, id, size);
+        if (older.isEmpty()) {
+            return hot;
+        }
+        Map<String, ChatMessageView> merged = new HashMap<>();
+        hot.forEach(m -> merged.put(m.getId(), m));
+        older.forEach(m -> merged.putIfAbsent(m.getId(), m));
+        List<ChatMessageView> page = new ArrayList<>(merged.values());
+        page.sort(Comparator.comparing(ChatMessageView::getCreatedAt).thenComparing(ChatMessageView::getId).reversed());
+        return page.size() > size ? page.subList(0, size) : page;
     }
 }
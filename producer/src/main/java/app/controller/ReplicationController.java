@@ -0,0 +1,143 @@
+package app.controller;
+
+import app.model.ContentCodec;
+import app.repo.ReplicationLog;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Peer-to-peer endpoints used to bootstrap new or restarted nodes.
+ *
+ * Responsibilities:
+ *  - GET /replication/snapshot: gzip-compressed NDJSON dump of chat_message. The first line
+ *    carries the replication log sequence number the snapshot is consistent with.
+ *  - GET /replication/log: log entries after a given sequence number, for catching up.
+ *
+ * Both serve the whole message history, so a request must carry the shared
+ * {@code chat.replication.token} in the {@value #TOKEN_HEADER} header; while no token is
+ * configured every request is refused.
+ */
+@RestController
+@RequestMapping("/replication")
+public class ReplicationController {
+
+    public static final String TOKEN_HEADER = "X-Replication-Token";
+
+    private static final int MAX_LOG_PAGE = 5000;
+
+    private final JdbcTemplate jdbc;
+    private final ReplicationLog replicationLog;
+    private final TransactionTemplate snapshotTx;
+    private final ObjectMapper mapper;
+    private final byte[] token;
+
+    public ReplicationController(JdbcTemplate jdbc, ReplicationLog replicationLog,
+                                 PlatformTransactionManager txManager, ObjectMapper mapper,
+                                 @Value("${chat.replication.token:}") String token) {
+        this.jdbc = jdbc;
+        this.replicationLog = replicationLog;
+        this.mapper = mapper;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        // Sequence number and rows are read from the same MVCC snapshot
+        this.snapshotTx = new TransactionTemplate(txManager);
+        this.snapshotTx.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        this.snapshotTx.setReadOnly(true);
+    }
+
+    @GetMapping("/snapshot")
+    public ResponseEntity<StreamingResponseBody> snapshot(
+            @RequestHeader(value = TOKEN_HEADER, required = false) String presented) {
+        if (!authorized(presented)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        StreamingResponseBody body = out -> snapshotTx.executeWithoutResult(status -> write(out));
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .body(body);
+    }
+
+    private void write(OutputStream raw) {
+        try (OutputStream out = new BufferedOutputStream(new GZIPOutputStream(raw, 64 * 1024))) {
+            long seq = replicationLog.maxSeq();
+            writeLine(out, Map.of("seq", seq));
+
+            jdbc.query(con -> {
+                var ps = con.prepareStatement(
+                        "SELECT id, user_id, role, content, content_z, created_at FROM chat_message");
+                ps.setFetchSize(1000);
+                return ps;
+            }, rs -> {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("id", rs.getString(1));
+                row.put("userId", rs.getString(2));
+                row.put("role", rs.getString(3));
+                row.put("content", ContentCodec.decode(rs.getString(4), rs.getBytes(5)));
+                row.put("createdAt", rs.getObject(6, Instant.class).toString());
+                writeLine(out, row);
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("Snapshot streaming failed", e);
+        }
+    }
+
+    private void writeLine(OutputStream out, Object value) {
+        try {
+            out.write(mapper.writeValueAsBytes(value));
+            out.write('\n');
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @GetMapping("/log")
+    public ResponseEntity<Map<String, Object>> log(@RequestHeader(value = TOKEN_HEADER, required = false) String presented,
+                                                   @RequestParam long afterSeq,
+                                                   @RequestParam(defaultValue = "1000") int limit) {
+        if (!authorized(presented)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        var entries = replicationLog.readAfter(afterSeq, Math.max(1, Math.min(limit, MAX_LOG_PAGE)));
+
+        List<Map<String, String>> messages = new ArrayList<>();
+        long lastSeq = afterSeq;
+        for (var entry : entries) {
+            var m = entry.message();
+            Map<String, String> row = new LinkedHashMap<>();
+            row.put("id", m.getId());
+            row.put("userId", m.getUserId());
+            row.put("role", m.getRole());
+            row.put("content", m.getContent());
+            row.put("createdAt", m.getCreatedAt().toString());
+            messages.add(row);
+            lastSeq = entry.seq();
+        }
+        return ResponseEntity.ok(Map.of("seq", lastSeq, "messages", messages));
+    }
+
+    private boolean authorized(String presented) {
+        return token.length > 0 && presented != null
+                && MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.UTF_8));
+    }
+}
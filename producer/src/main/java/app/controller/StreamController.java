@@ -1,11 +1,16 @@
 package app.controller;
 
+import app.service.GenerationCanceller;
 import app.service.StreamService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @RestController
 @RequestMapping("/chat")
 @CrossOrigin(origins = "${frontend.url}")
@@ -14,11 +19,34 @@ public class StreamController {
     @Autowired
     private StreamService streamService;
 
+    @Autowired
+    private GenerationCanceller canceller;
+
     /**
      * Endpoint for client to connect to SSE stream for a specific user.
+     * Browsers send {@code Last-Event-ID} when they reconnect; clients that open a fresh
+     * EventSource can pass the same value as the {@code lastEventId} query parameter.
      */
     @GetMapping(value = "/stream/{userId}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter stream(@PathVariable String userId) {
-        return streamService.connect(userId);
+    public SseEmitter stream(@PathVariable String userId,
+                             @RequestHeader(value = "Last-Event-ID", required = false) String lastEventIdHeader,
+                             @RequestParam(value = "lastEventId", required = false) String lastEventIdParam) {
+        String lastEventId = lastEventIdHeader != null ? lastEventIdHeader : lastEventIdParam;
+        return streamService.connect(userId, lastEventId);
+    }
+
+    /**
+     * Endpoint for the client to stop the reply being generated for a user.
+     * The worker keeps what was generated so far as a partial reply and ends the stream.
+     */
+    @DeleteMapping("/stream/{userId}")
+    public ResponseEntity<Map<String, String>> cancel(@PathVariable String userId) {
+        String generationId = canceller.cancel(userId);
+        Map<String, String> body = new HashMap<>();
+        body.put("status", "cancelling");
+        if (generationId != null) {
+            body.put("generationId", generationId);
+        }
+        return ResponseEntity.accepted().body(body);
     }
 }
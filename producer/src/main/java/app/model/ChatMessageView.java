@@ -0,0 +1,15 @@
+package app.model;
+
+import java.time.Instant;
+
+/**
+ * Read-only projection of a chat message used for history pages.
+ * Values are read straight from the result set, without managed entity instances.
+ */
+public interface ChatMessageView {
+    String getId();
+    String getUserId();
+    String getRole();
+    String getContent();
+    Instant getCreatedAt();
+}
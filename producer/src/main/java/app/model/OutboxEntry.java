@@ -0,0 +1,61 @@
+package app.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import java.time.Instant;
+
+/**
+ * One message waiting in the transactional outbox.
+ * Rows are written in the same transaction as the chat message they announce and
+ * deleted by the relay once the broker has confirmed the publish.
+ */
+@Entity
+@Table(name = "chat_outbox")
+public class OutboxEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long seq;
+
+    @Column(nullable = false)
+    private String exchange; // "" for the default exchange
+
+    @Column(nullable = false)
+    private String routingKey;
+
+    private String contentType;
+
+    private String traceId;
+
+    private Integer priority; // AMQP message priority, null for none
+
+    @Column(nullable = false, columnDefinition = "BLOB")
+    private byte[] body; // already encoded with the wire converter
+
+    @Column(nullable = false)
+    private Instant createdAt;
+
+    public OutboxEntry() {}
+
+    // getters & setters
+    public Long getSeq() { return seq; }
+    public void setSeq(Long seq) { this.seq = seq; }
+    public String getExchange() { return exchange; }
+    public void setExchange(String exchange) { this.exchange = exchange; }
+    public String getRoutingKey() { return routingKey; }
+    public void setRoutingKey(String routingKey) { this.routingKey = routingKey; }
+    public String getContentType() { return contentType; }
+    public void setContentType(String contentType) { this.contentType = contentType; }
+    public String getTraceId() { return traceId; }
+    public void setTraceId(String traceId) { this.traceId = traceId; }
+    public Integer getPriority() { return priority; }
+    public void setPriority(Integer priority) { this.priority = priority; }
+    public byte[] getBody() { return body; }
+    public void setBody(byte[] body) { this.body = body; }
+    public Instant getCreatedAt() { return createdAt; }
+    public void setCreatedAt(Instant createdAt) { this.createdAt = createdAt; }
+}
@@ -0,0 +1,39 @@
+package app.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import java.time.Instant;
+
+/**
+ * One entry of this node's sequenced replication log.
+ * Every time a message row is inserted or updated through replication, its id is
+ * appended with the next sequence number, so peers can catch up from a snapshot.
+ */
+@Entity
+@Table(name = "replication_log")
+public class ReplicationLogEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long seq;
+
+    @Column(nullable = false)
+    private String messageId;
+
+    @Column(nullable = false)
+    private Instant appliedAt;
+
+    public ReplicationLogEntry() {}
+
+    // getters & setters
+    public Long getSeq() { return seq; }
+    public void setSeq(Long seq) { this.seq = seq; }
+    public String getMessageId() { return messageId; }
+    public void setMessageId(String messageId) { this.messageId = messageId; }
+    public Instant getAppliedAt() { return appliedAt; }
+    public void setAppliedAt(Instant appliedAt) { this.appliedAt = appliedAt; }
+}
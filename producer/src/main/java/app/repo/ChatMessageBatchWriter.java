@@ -0,0 +1,135 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import app.model.ContentCodec;
+import app.service.AntiEntropyService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies batches of replicated messages with a single JDBC-batched MERGE.
+ *
+ * A row is inserted if its id is unknown and overwritten only when the incoming
+ * createdAt is newer than the stored one ("newer createdAt wins"). Every applied row
+ * is appended to the {@link ReplicationLog} in the same transaction. Locally created
+ * messages can also carry {@link Outbox} publishes, committed atomically with them.
+ * After commit the applied rows are handed to the {@link ChatMessageStore} and the
+ * {@link AntiEntropyService}.
+ *
+ * With {@code chat.store.compression.enabled}, contents of at least {@code min-bytes}
+ * are stored in {@code content_z} ({@link ContentCodec}) and {@code content} is left null.
+ */
+@Repository
+public class ChatMessageBatchWriter {
+
+    private static final String UPSERT_NEWER =
+            "MERGE INTO chat_message t USING (VALUES (" +
+            "CAST(? AS VARCHAR(255)), CAST(? AS VARCHAR(255)), CAST(? AS VARCHAR(255)), " +
+            "CAST(? AS CLOB), CAST(? AS BLOB), CAST(? AS TIMESTAMP(6) WITH TIME ZONE))) " +
+            "s(id, user_id, role, content, content_z, created_at) ON t.id = s.id " +
+            "WHEN MATCHED AND t.created_at < s.created_at THEN UPDATE SET " +
+            "user_id = s.user_id, role = s.role, content = s.content, content_z = s.content_z, " +
+            "created_at = s.created_at " +
+            "WHEN NOT MATCHED THEN INSERT (id, user_id, role, content, content_z, created_at) " +
+            "VALUES (s.id, s.user_id, s.role, s.content, s.content_z, s.created_at)";
+
+    private final JdbcTemplate jdbc;
+    private final ReplicationLog replicationLog;
+    private final Outbox outbox;
+    private final ChatMessageStore store;
+    private final AntiEntropyService antiEntropy;
+    private final boolean compress;
+    private final int compressMinBytes;
+
+    public ChatMessageBatchWriter(JdbcTemplate jdbc, ReplicationLog replicationLog, Outbox outbox,
+                                  ChatMessageStore store, AntiEntropyService antiEntropy,
+                                  @Value("${chat.store.compression.enabled:false}") boolean compress,
+                                  @Value("${chat.store.compression.min-bytes:128}") int compressMinBytes) {
+        this.jdbc = jdbc;
+        this.replicationLog = replicationLog;
+        this.outbox = outbox;
+        this.store = store;
+        this.antiEntropy = antiEntropy;
+        this.compress = compress;
+        this.compressMinBytes = compressMinBytes;
+    }
+
+    /**
+     * Upserts the batch and appends its outbox publishes in one transaction.
+     */
+    @Transactional
+    public List<ChatMessage> upsertNewer(Collection<ChatMessage> messages, List<Outbox.Publish> publishes) {
+        List<ChatMessage> applied = upsertNewer(messages);
+        if (!publishes.isEmpty()) {
+            outbox.append(publishes);
+        }
+        return applied;
+    }
+
+    /**
+     * Upserts the batch in one transaction.
+     *
+     * @return the messages that were actually inserted or updated
+     */
+    @Transactional
+    public List<ChatMessage> upsertNewer(Collection<ChatMessage> messages) {
+        // Collapse duplicates inside the batch, keeping the newest version of each id
+        Map<String, ChatMessage> newest = new LinkedHashMap<>();
+        for (ChatMessage msg : messages) {
+            newest.merge(msg.getId(), msg, (a, b) -> b.getCreatedAt().isAfter(a.getCreatedAt()) ? b : a);
+        }
+        List<ChatMessage> batch = new ArrayList<>(newest.values());
+        if (batch.isEmpty()) {
+            return batch;
+        }
+
+        int[][] counts = jdbc.batchUpdate(UPSERT_NEWER, batch, batch.size(), (ps, msg) -> {
+            ps.setString(1, msg.getId());
+            ps.setString(2, msg.getUserId());
+            ps.setString(3, msg.getRole());
+            String content = msg.getContent();
+            byte[] compressed = compress ? ContentCodec.encode(content, compressMinBytes) : null;
+            ps.setString(4, compressed == null ? content : null);
+            ps.setBytes(5, compressed);
+            ps.setObject(6, msg.getCreatedAt());
+        });
+
+        List<ChatMessage> applied = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (counts[0][i] != 0) {
+                applied.add(batch.get(i));
+            }
+        }
+        if (!applied.isEmpty()) {
+            replicationLog.append(applied);
+            afterCommit(() -> {
+                store.appended(applied);
+                antiEntropy.changed(applied);
+            });
+        }
+        return applied;
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
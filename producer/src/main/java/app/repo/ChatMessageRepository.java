@@ -1,9 +1,35 @@
 package app.repo;
 
 import app.model.ChatMessage;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.Instant;
 import java.util.List;
 
 public interface ChatMessageRepository extends JpaRepository<ChatMessage, String> {
     List<ChatMessage> findTop100ByUserIdOrderByCreatedAtDesc(String userId);
+
+    /**
+     * Newest messages for a user (first history page). Built as unmanaged instances, so
+     * compressed contents are only decoded if the page is actually serialized.
+     */
+    @Query("select new app.model.ChatMessage(m.id, m.userId, m.role, m.content, m.contentZ, m.createdAt) " +
+           "from ChatMessage m where m.userId = :userId " +
+           "order by m.createdAt desc, m.id desc")
+    List<ChatMessage> findHistoryPage(@Param("userId") String userId, Pageable page);
+
+    /**
+     * Messages strictly older than the (createdAt, id) cursor, newest first.
+     */
+    @Query("select new app.model.ChatMessage(m.id, m.userId, m.role, m.content, m.contentZ, m.createdAt) " +
+           "from ChatMessage m where m.userId = :userId " +
+           "and (m.createdAt < :createdAt or (m.createdAt = :createdAt and m.id < :id)) " +
+           "order by m.createdAt desc, m.id desc")
+    List<ChatMessage> findHistoryPageBefore(@Param("userId") String userId,
+                                            @Param("createdAt") Instant createdAt,
+                                            @Param("id") String id,
+                                            Pageable page);
 }
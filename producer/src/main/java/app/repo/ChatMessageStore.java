@@ -0,0 +1,35 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import app.model.ChatMessageView;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Read side of the message history, with a choice of storage backend.
+ *
+ * {@code chat_message} stays the system of record (replication, snapshots, anti-entropy
+ * and the outbox all run against it); a store serves history reads and is kept current
+ * through {@link #appended}, which {@link ChatMessageBatchWriter} calls after every
+ * commit. Selected with {@code chat.store.backend}: {@code jpa} (default) or {@code mmap}.
+ */
+public interface ChatMessageStore {
+
+    /**
+     * Messages of the user, newest first, strictly older than the {@code (createdAt, id)}
+     * cursor, or the newest ones when {@code beforeCreatedAt} is null.
+     */
+    List<ChatMessageView> historyPage(String userId, Instant beforeCreatedAt, String beforeId, int limit);
+
+    /**
+     * Rows that were inserted or updated by a committed transaction.
+     */
+    void appended(List<ChatMessage> applied);
+
+    /**
+     * Rows that were deleted from {@code chat_message} by retention.
+     */
+    void removed(Collection<String> ids);
+}
@@ -0,0 +1,221 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cold tier of the message history: immutable, gzip-compressed segment files per user.
+ *
+ * Each archive run writes one segment per user under
+ * {@code <dir>/<hash byte>/<base64url userId>/}, named after the newest and oldest
+ * createdAt it holds (epoch nanos), so a page read opens only the segments that can
+ * contain messages before its cursor. Inside, records are sorted by (createdAt, id):
+ * <pre>
+ *   int count | { UTF id | UTF role | long createdAt (epoch nanos) | int length (-1 for null) | content }
+ * </pre>
+ * Segments are written to a temporary file, forced and renamed into place, so a reader
+ * never sees a partial one. A message archived twice (after a crash between writing the
+ * segment and deleting the hot rows) is returned once.
+ */
+@Repository
+public class ColdHistoryStore {
+
+    private static final String SUFFIX = ".seg";
+
+    private final Path dir;
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+
+    public ColdHistoryStore(@Value("${chat.tier.cold.dir:./data/cold}") String dir) {
+        this.dir = Path.of(dir);
+    }
+
+    /**
+     * Writes the user's messages, sorted by (createdAt, id), as a new segment.
+     */
+    public void archive(String userId, List<ChatMessage> messages) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        Path userDir = userDir(userId);
+        Files.createDirectories(userDir);
+        long oldest = nanos(messages.get(0).getCreatedAt());
+        long newest = nanos(messages.get(messages.size() - 1).getCreatedAt());
+        Path target = userDir.resolve(String.format("%019d-%019d-%d%s", newest, oldest, sequence.incrementAndGet(), SUFFIX));
+        Path tmp = userDir.resolve(target.getFileName() + ".tmp");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(messages.size());
+            for (ChatMessage m : messages) {
+                out.writeUTF(m.getId());
+                out.writeUTF(m.getRole());
+                out.writeLong(nanos(m.getCreatedAt()));
+                String content = m.getContent();
+                if (content == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] utf8 = content.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(utf8.length);
+                    out.write(utf8);
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Archived messages of the user, newest first, strictly older than the
+     * {@code (createdAt, id)} cursor, or the newest ones when {@code beforeCreatedAt} is null.
+     */
+    public List<ChatMessage> page(String userId, Instant beforeCreatedAt, String beforeId, int limit) {
+        Path userDir = userDir(userId);
+        if (limit <= 0 || !Files.isDirectory(userDir)) {
+            return List.of();
+        }
+        long cursor = beforeCreatedAt == null ? Long.MAX_VALUE : nanos(beforeCreatedAt);
+        List<Segment> segments = new ArrayList<>();
+        for (Path file : list(userDir)) {
+            Segment segment = Segment.parse(file);
+            if (segment != null && segment.oldest() <= cursor) {
+                segments.add(segment);
+            }
+        }
+        segments.sort(Comparator.comparingLong(Segment::newest).reversed());
+
+        Comparator<ChatMessage> newestFirst = Comparator.comparing(ChatMessage::getCreatedAt)
+                .thenComparing(ChatMessage::getId).reversed();
+        List<ChatMessage> out = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Segment segment : segments) {
+            // Segments are disjoint but for re-archived stragglers: stop once the next
+            // one cannot hold anything newer than the page's oldest message
+            if (out.size() >= limit && segment.newest() < nanos(out.get(limit - 1).getCreatedAt())) {
+                break;
+            }
+            for (ChatMessage m : read(segment.path(), userId)) {
+                if (isBefore(m, beforeCreatedAt, beforeId) && seen.add(m.getId())) {
+                    out.add(m);
+                }
+            }
+            out.sort(newestFirst);
+        }
+        return out.size() > limit ? new ArrayList<>(out.subList(0, limit)) : out;
+    }
+
+    /**
+     * Deletes every segment whose newest message is older than {@code cutoff}.
+     *
+     * @return segments deleted
+     */
+    public int purgeBefore(Instant cutoff) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        long limit = nanos(cutoff);
+        int deleted = 0;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).toList()) {
+                Segment segment = Segment.parse(file);
+                if (segment != null && segment.newest() < limit && Files.deleteIfExists(file)) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private Path userDir(String userId) {
+        String name = Base64.getUrlEncoder().withoutPadding().encodeToString(userId.getBytes(StandardCharsets.UTF_8));
+        return dir.resolve(String.format("%02x", userId.hashCode() & 0xff)).resolve(name);
+    }
+
+    private static List<Path> list(Path userDir) {
+        try (Stream<Path> files = Files.list(userDir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<ChatMessage> read(Path file, String userId) {
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new GZIPInputStream(raw, 64 * 1024))) {
+            int count = in.readInt();
+            List<ChatMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                String role = in.readUTF();
+                long createdAt = in.readLong();
+                int length = in.readInt();
+                String content = null;
+                if (length >= 0) {
+                    content = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+                }
+                messages.add(new ChatMessage(id, userId, role, content, Instant.ofEpochSecond(0, createdAt)));
+            }
+            return messages;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read cold segment " + file, e);
+        }
+    }
+
+    private static boolean isBefore(ChatMessage m, Instant createdAt, String id) {
+        if (createdAt == null) {
+            return true;
+        }
+        int c = m.getCreatedAt().compareTo(createdAt);
+        return c < 0 || (c == 0 && m.getId().compareTo(id) < 0);
+    }
+
+    private static long nanos(Instant instant) {
+        return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000L), instant.getNano());
+    }
+
+    private record Segment(Path path, long newest, long oldest) {
+        static Segment parse(Path path) {
+            String[] parts = path.getFileName().toString().split("-");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                return new Segment(path, Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
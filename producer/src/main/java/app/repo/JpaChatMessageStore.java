@@ -0,0 +1,44 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import app.model.ChatMessageView;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * History store that reads {@code chat_message} directly ({@code chat.store.backend=jpa}).
+ */
+@Repository
+@ConditionalOnProperty(name = "chat.store.backend", havingValue = "jpa", matchIfMissing = true)
+public class JpaChatMessageStore implements ChatMessageStore {
+
+    private final ChatMessageRepository repo;
+
+    public JpaChatMessageStore(ChatMessageRepository repo) {
+        this.repo = repo;
+    }
+
+    @Override
+    public List<ChatMessageView> historyPage(String userId, Instant beforeCreatedAt, String beforeId, int limit) {
+        PageRequest page = PageRequest.ofSize(limit);
+        return new ArrayList<>(beforeCreatedAt == null
+                ? repo.findHistoryPage(userId, page)
+                : repo.findHistoryPageBefore(userId, beforeCreatedAt, beforeId, page));
+    }
+
+    @Override
+    public void appended(List<ChatMessage> applied) {
+        // The rows are already in the table
+    }
+
+    @Override
+    public void removed(Collection<String> ids) {
+        // Already gone from the table
+    }
+}
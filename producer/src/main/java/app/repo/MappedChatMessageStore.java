@@ -0,0 +1,168 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import app.model.ChatMessageView;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * History store on a {@link MappedMessageLog} ({@code chat.store.backend=mmap}).
+ *
+ * The log is derived from {@code chat_message}: on startup it is trusted only after a
+ * clean shutdown and when its row count and newest timestamp match the table;
+ * otherwise it is rebuilt from the table. Superseded and removed records are compacted
+ * on a timer; a removed record still in its segment reappears on reopen, which the
+ * count check turns into a rebuild.
+ */
+@Repository
+@ConditionalOnProperty(name = "chat.store.backend", havingValue = "mmap")
+@DependsOn("entityManagerFactory") // chat_message must exist before the first reconcile
+public class MappedChatMessageStore implements ChatMessageStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedChatMessageStore.class);
+    private static final String CLEAN_MARKER = "clean-shutdown";
+
+    private final JdbcTemplate jdbc;
+    private final Path dir;
+    private final int segmentBytes;
+    private final double compactThreshold;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private MappedMessageLog messages;
+
+    public MappedChatMessageStore(JdbcTemplate jdbc, MeterRegistry registry,
+                                  @Value("${chat.store.mmap.dir:./data/msglog}") String dir,
+                                  @Value("${chat.store.mmap.segment-bytes:67108864}") int segmentBytes,
+                                  @Value("${chat.store.mmap.compact-threshold:0.5}") double compactThreshold) {
+        this.jdbc = jdbc;
+        this.dir = Path.of(dir);
+        this.segmentBytes = segmentBytes;
+        this.compactThreshold = compactThreshold;
+
+        Gauge.builder("chat.store.mmap.messages", this, MappedChatMessageStore::size).register(registry);
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            messages = MappedMessageLog.open(dir, segmentBytes);
+            boolean clean = Files.deleteIfExists(dir.resolve(CLEAN_MARKER));
+            if (!clean || !matchesTable()) {
+                rebuild();
+            }
+            log.info("Message log open dir={} messages={}", dir, messages.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessageView> historyPage(String userId, Instant beforeCreatedAt, String beforeId, int limit) {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<ChatMessageView>(messages.before(userId, beforeCreatedAt, beforeId, limit));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void appended(List<ChatMessage> applied) {
+        lock.writeLock().lock();
+        try {
+            applied.forEach(messages::append);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removed(Collection<String> ids) {
+        lock.writeLock().lock();
+        try {
+            ids.forEach(messages::remove);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${chat.store.mmap.compact-interval-ms:600000}")
+    public void compact() {
+        lock.writeLock().lock();
+        try {
+            int removed = messages.compact(compactThreshold);
+            if (removed > 0) {
+                log.info("Compacted message log segments={}", removed);
+            }
+        } catch (IOException e) {
+            log.warn("Message log compaction failed: {}", e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            messages.close();
+            Files.createFile(dir.resolve(CLEAN_MARKER));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int size() {
+        lock.readLock().lock();
+        try {
+            return messages == null ? 0 : messages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean matchesTable() {
+        Long rows = jdbc.queryForObject("SELECT COUNT(*) FROM chat_message", Long.class);
+        Instant newest = jdbc.queryForObject("SELECT MAX(created_at) FROM chat_message", Instant.class);
+        Instant logged = messages.newest();
+        if (rows == null || rows != messages.size() || (newest == null) != (logged == null)) {
+            return false;
+        }
+        // The table keeps microseconds, the log whatever precision the message had
+        return newest == null || Duration.between(newest, logged).abs().toNanos() < 1_000;
+    }
+
+    private void rebuild() throws IOException {
+        long start = System.currentTimeMillis();
+        messages.clear();
+        jdbc.query("SELECT id, user_id, role, content, content_z, created_at FROM chat_message ORDER BY created_at, id",
+                rs -> {
+                    messages.append(new ChatMessage(rs.getString(1), rs.getString(2), rs.getString(3),
+                            rs.getString(4), rs.getBytes(5), rs.getObject(6, Instant.class)));
+                });
+        messages.force();
+        log.info("Rebuilt message log from chat_message rows={} tookMs={}", messages.size(),
+                System.currentTimeMillis() - start);
+    }
+}
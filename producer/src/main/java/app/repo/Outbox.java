@@ -0,0 +1,106 @@
+package app.repo;
+
+import app.config.Tracing;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * JDBC access to the {@code chat_outbox} table.
+ *
+ * Publishes are encoded when they are staged, so the relay only copies bytes, and
+ * appended by {@link ChatMessageBatchWriter} in the same transaction as the messages
+ * they announce. Rows are read in sequence order and deleted once confirmed.
+ */
+@Repository
+public class Outbox {
+
+    private final JdbcTemplate jdbc;
+    private final RabbitTemplate rabbitTemplate;
+
+    public Outbox(JdbcTemplate jdbc, RabbitTemplate rabbitTemplate) {
+        this.jdbc = jdbc;
+        this.rabbitTemplate = rabbitTemplate;
+    }
+
+    /**
+     * Encodes a publish for the outbox with the template's wire converter.
+     * The current trace id is kept and restored on the outgoing message.
+     */
+    public Publish stage(String exchange, String routingKey, Object payload) {
+        return stage(exchange, routingKey, payload, null);
+    }
+
+    /**
+     * Same as {@link #stage(String, String, Object)}, with an AMQP message priority
+     * (null for none).
+     */
+    public Publish stage(String exchange, String routingKey, Object payload, Integer priority) {
+        Message message = rabbitTemplate.getMessageConverter().toMessage(payload, new MessageProperties());
+        return new Publish(exchange, routingKey, message.getMessageProperties().getContentType(),
+                Tracing.current(), priority, message.getBody());
+    }
+
+    public void append(List<Publish> publishes) {
+        Instant now = Instant.now();
+        jdbc.batchUpdate("INSERT INTO chat_outbox (exchange, routing_key, content_type, trace_id, priority, body, created_at) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?)",
+                publishes, publishes.size(), (ps, p) -> {
+                    ps.setString(1, p.exchange());
+                    ps.setString(2, p.routingKey());
+                    ps.setString(3, p.contentType());
+                    ps.setString(4, p.traceId());
+                    ps.setObject(5, p.priority());
+                    ps.setBytes(6, p.body());
+                    ps.setObject(7, now);
+                });
+    }
+
+    /**
+     * Oldest pending publishes, in the order they were staged.
+     */
+    public List<Entry> readBatch(int limit) {
+        return jdbc.query(
+                "SELECT seq, exchange, routing_key, content_type, trace_id, priority, body FROM chat_outbox ORDER BY seq LIMIT ?",
+                (rs, i) -> new Entry(rs.getLong(1), new Publish(rs.getString(2), rs.getString(3),
+                        rs.getString(4), rs.getString(5), rs.getObject(6, Integer.class), rs.getBytes(7))),
+                limit);
+    }
+
+    public void delete(List<Long> seqs) {
+        jdbc.batchUpdate("DELETE FROM chat_outbox WHERE seq = ?", seqs, seqs.size(),
+                (ps, seq) -> ps.setLong(1, seq));
+    }
+
+    public long count() {
+        Long count = jdbc.queryForObject("SELECT COUNT(*) FROM chat_outbox", Long.class);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * An encoded message and where to publish it.
+     */
+    public record Publish(String exchange, String routingKey, String contentType, String traceId,
+                          Integer priority, byte[] body) {
+
+        public Message toMessage() {
+            MessageProperties props = new MessageProperties();
+            props.setContentType(contentType);
+            props.setContentLength(body.length);
+            if (priority != null) {
+                props.setPriority(priority);
+            }
+            if (traceId != null) {
+                props.setHeader(Tracing.AMQP_HEADER, traceId);
+            }
+            return new Message(body, props);
+        }
+    }
+
+    public record Entry(long seq, Publish publish) {}
+}
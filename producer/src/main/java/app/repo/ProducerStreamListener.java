@@ -1,18 +1,23 @@
 package app.repo;
 
+import app.config.Tracing;
+import app.model.StreamMessage;
 import app.service.StreamService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Component;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.util.Map;
-
 /**
  * Listens to AI worker streams for specific users and pushes tokens to SSE.
  */
 @Component
 public class ProducerStreamListener {
 
+    private static final Logger log = LoggerFactory.getLogger(ProducerStreamListener.class);
+
     private final StreamService streamService;
 
     @Autowired
@@ -21,28 +26,42 @@ public class ProducerStreamListener {
     }
 
     @RabbitListener(queues = "#{streamQueue.name}")
-    public void onStreamMessage(Map<String, Object> payload) {
-        String userId = (String) payload.get("userId");
-        String event = (String) payload.get("event");
-        String content = (String) payload.get("content");
+    public void onStreamMessage(StreamMessage payload,
+                                @Header(name = Tracing.AMQP_HEADER, required = false) String traceId) {
+        try (var traceScope = Tracing.scope(traceId)) {
+            dispatch(payload);
+        }
+    }
+
+    private void dispatch(StreamMessage payload) {
+        String userId = payload.userId();
+        String event = payload.event();
+        String content = payload.content();
+        String generationId = payload.generationId();
 
         // Ensure that we skip any unrecognized events
-        if (event == null || (!event.equals("token") && !event.equals("complete"))) {
+        if (event == null) {
             return;  // Skip to the next one
         }
 
         switch (event) {
-    case "token" -> {
-        if (content != null) {
-            streamService.sendToken(userId, content);
+            case StreamMessage.FRAME -> {
+                // Micro-batched tokens from the worker, unpacked in order
+                if (payload.tokens() != null) {
+                    streamService.sendTokens(userId, generationId, payload.tokens());
+                }
+            }
+            case StreamMessage.TOKEN -> {
+                if (content != null) {
+                    streamService.sendToken(userId, generationId, content);
+                }
+            }
+            case StreamMessage.COMPLETE -> streamService.complete(userId, generationId);
+            case StreamMessage.SUPERSEDED -> streamService.supersede(userId, generationId);
+            default -> {
+                // Anything else just gets skipped or logged
+                log.warn("Unknown stream event type={} userId={}", event, userId);
+            }
         }
     }
-    case "complete" -> streamService.complete(userId);
-    default -> {
-        // Anything else just gets skipped or logged
-        System.out.println("⚠️ Unknown event type: " + event);
-    }
-}
-
-    }
 }
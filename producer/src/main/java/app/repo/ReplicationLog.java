@@ -0,0 +1,75 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * JDBC access to the {@code replication_log} table.
+ *
+ * Entries are appended by {@link ChatMessageBatchWriter} in the same transaction as the
+ * rows they describe, and trimmed after the configured retention.
+ */
+@Repository
+public class ReplicationLog {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationLog.class);
+
+    private final JdbcTemplate jdbc;
+    private final Duration retention;
+
+    public ReplicationLog(JdbcTemplate jdbc,
+                          @Value("${chat.replication.log-retention-hours:24}") long retentionHours) {
+        this.jdbc = jdbc;
+        this.retention = Duration.ofHours(retentionHours);
+    }
+
+    public void append(List<ChatMessage> applied) {
+        Instant now = Instant.now();
+        jdbc.batchUpdate("INSERT INTO replication_log (message_id, applied_at) VALUES (?, ?)",
+                applied, applied.size(), (ps, msg) -> {
+                    ps.setString(1, msg.getId());
+                    ps.setObject(2, now);
+                });
+    }
+
+    /**
+     * Highest sequence number currently in the log, or 0 if it is empty.
+     */
+    public long maxSeq() {
+        Long seq = jdbc.queryForObject("SELECT COALESCE(MAX(seq), 0) FROM replication_log", Long.class);
+        return seq == null ? 0 : seq;
+    }
+
+    /**
+     * Log entries after {@code afterSeq}, joined with the current version of each message.
+     */
+    public List<Entry> readAfter(long afterSeq, int limit) {
+        return jdbc.query(
+                "SELECT l.seq, m.id, m.user_id, m.role, m.content, m.content_z, m.created_at " +
+                "FROM replication_log l JOIN chat_message m ON m.id = l.message_id " +
+                "WHERE l.seq > ? ORDER BY l.seq LIMIT ?",
+                (rs, i) -> new Entry(rs.getLong(1), new ChatMessage(
+                        rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5), rs.getBytes(6),
+                        rs.getObject(7, Instant.class))),
+                afterSeq, limit);
+    }
+
+    @Scheduled(fixedDelayString = "${chat.replication.log-trim-interval-ms:600000}")
+    public void trim() {
+        int removed = jdbc.update("DELETE FROM replication_log WHERE applied_at < ?", Instant.now().minus(retention));
+        if (removed > 0) {
+            log.info("Trimmed replication log entries={}", removed);
+        }
+    }
+
+    public record Entry(long seq, ChatMessage message) {}
+}
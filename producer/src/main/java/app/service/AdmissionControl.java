@@ -0,0 +1,225 @@
+package app.service;
+
+import app.config.RabbitConfig;
+import app.model.TriagePriority;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for new chat messages.
+ *
+ * A request is admitted only if
+ *  - the user's token bucket ({@code user-rate} per second, bursts of {@code user-burst}) and
+ *    the node's global bucket ({@code global-rate}, {@code global-burst}) have a token, and
+ *  - the projected wait on the process queue lanes is within {@code wait-slo-ms}.
+ *
+ * Urgent messages only need a token from the user's bucket: they take a lane that workers
+ * serve ahead of the others, with reserved slots, so neither the node's rate nor the
+ * routine backlog says anything about how long they will wait.
+ *
+ * The projected wait is sampled every {@code sample-ms} from the broker: messages ready
+ * on all lanes divided by the drain rate, estimated as consumers times {@code consumer-rate} (replies
+ * per second one worker consumer sustains). With no consumers and a backlog the queue is
+ * treated as stalled. Shedding there, instead of queueing, keeps the latency of accepted
+ * requests bounded; rejected callers get a retry delay. With sharded routing (see
+ * {@link ProcessRouter}) the backlog sits in the workers' shard queues, which are not sampled.
+ */
+@Component
+public class AdmissionControl {
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+    private final AmqpAdmin amqpAdmin;
+    private final boolean enabled;
+    private final double userRate;
+    private final double userBurst;
+    private final long waitSloMillis;
+    private final double consumerRate;
+    private final long idleEvictNanos;
+
+    private final TokenBucket global;
+    private final Map<String, TokenBucket> users = new ConcurrentHashMap<>();
+    private volatile long projectedWaitMillis;
+
+    private final Counter rejectedUser;
+    private final Counter rejectedGlobal;
+    private final Counter shed;
+
+    public AdmissionControl(AmqpAdmin amqpAdmin, MeterRegistry registry,
+                            @Value("${chat.admission.enabled:true}") boolean enabled,
+                            @Value("${chat.admission.user-rate:1}") double userRate,
+                            @Value("${chat.admission.user-burst:5}") double userBurst,
+                            @Value("${chat.admission.global-rate:200}") double globalRate,
+                            @Value("${chat.admission.global-burst:400}") double globalBurst,
+                            @Value("${chat.admission.wait-slo-ms:30000}") long waitSloMillis,
+                            @Value("${chat.admission.consumer-rate:0.5}") double consumerRate) {
+        this.amqpAdmin = amqpAdmin;
+        this.enabled = enabled;
+        this.userRate = userRate;
+        this.userBurst = Math.max(1, userBurst);
+        this.waitSloMillis = waitSloMillis;
+        this.consumerRate = consumerRate;
+        this.global = new TokenBucket(globalRate, Math.max(1, globalBurst));
+        // A user bucket that has refilled completely carries no state worth keeping
+        this.idleEvictNanos = TimeUnit.SECONDS.toNanos((long) Math.ceil(this.userBurst / Math.max(userRate, 1e-9)));
+
+        this.rejectedUser = Counter.builder("chat.admission.rejected").tag("reason", "user_rate")
+                .description("POST /chat requests refused by admission control")
+                .register(registry);
+        this.rejectedGlobal = Counter.builder("chat.admission.rejected").tag("reason", "global_rate")
+                .description("POST /chat requests refused by admission control")
+                .register(registry);
+        this.shed = Counter.builder("chat.admission.rejected").tag("reason", "queue_wait")
+                .description("POST /chat requests refused by admission control")
+                .register(registry);
+        Gauge.builder("chat.admission.projected_wait", this, a -> a.projectedWaitMillis / 1000.0)
+                .description("Projected wait on the process queue at the last sample")
+                .baseUnit("seconds")
+                .register(registry);
+        Gauge.builder("chat.admission.user_buckets", users, Map::size).register(registry);
+    }
+
+    /**
+     * Decides whether a message from the user may be accepted, taking a token from the
+     * user's and, unless it is urgent, the global bucket if so.
+     */
+    public Decision admit(String userId, TriagePriority priority) {
+        if (!enabled) {
+            return Decision.ADMITTED;
+        }
+        boolean urgent = priority == TriagePriority.URGENT;
+        long wait = projectedWaitMillis;
+        if (!urgent && wait > waitSloMillis) {
+            shed.increment();
+            return Decision.rejected("overloaded", wait - waitSloMillis);
+        }
+        long now = System.nanoTime();
+        TokenBucket user = users.computeIfAbsent(userId, u -> new TokenBucket(userRate, userBurst));
+        long userDelay = user.tryAcquire(now);
+        if (userDelay > 0) {
+            rejectedUser.increment();
+            return Decision.rejected("rate limited", TimeUnit.NANOSECONDS.toMillis(userDelay));
+        }
+        if (urgent) {
+            return Decision.ADMITTED;
+        }
+        long globalDelay = global.tryAcquire(now);
+        if (globalDelay > 0) {
+            user.refund();
+            rejectedGlobal.increment();
+            return Decision.rejected("overloaded", TimeUnit.NANOSECONDS.toMillis(globalDelay));
+        }
+        return Decision.ADMITTED;
+    }
+
+    @Scheduled(fixedDelayString = "${chat.admission.sample-ms:1000}")
+    public void sample() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            QueueInformation info = amqpAdmin.getQueueInfo(RabbitConfig.PROCESS_QUEUE);
+            if (info == null) {
+                projectedWaitMillis = 0;
+                return;
+            }
+            // Every worker consumes all lanes, so the routine lane's consumers drain them all
+            long ready = info.getMessageCount();
+            for (TriagePriority lane : TriagePriority.values()) {
+                if (lane != TriagePriority.ROUTINE) {
+                    QueueInformation laneInfo = amqpAdmin.getQueueInfo(RabbitConfig.processQueue(lane));
+                    ready += laneInfo == null ? 0 : laneInfo.getMessageCount();
+                }
+            }
+            int consumers = info.getConsumerCount();
+            if (ready == 0) {
+                projectedWaitMillis = 0;
+            } else if (consumers == 0 || consumerRate <= 0) {
+                projectedWaitMillis = Long.MAX_VALUE / 2; // stalled
+            } else {
+                projectedWaitMillis = (long) (ready * 1000 / (consumers * consumerRate));
+            }
+        } catch (RuntimeException e) {
+            // Broker unreachable: keep the last estimate rather than guess
+            log.debug("Process queue sample failed: {}", e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${chat.admission.evict-interval-ms:60000}")
+    public void evictIdle() {
+        long now = System.nanoTime();
+        users.values().removeIf(bucket -> bucket.idleFor(now) > idleEvictNanos);
+    }
+
+    /**
+     * Admission result; {@code retryAfterMillis} is a hint for the Retry-After header.
+     */
+    public record Decision(boolean admitted, String reason, long retryAfterMillis) {
+        static final Decision ADMITTED = new Decision(true, null, 0);
+
+        static Decision rejected(String reason, long retryAfterMillis) {
+            return new Decision(false, reason, Math.max(1000, retryAfterMillis));
+        }
+
+        /**
+         * Whole seconds for the Retry-After header, capped at a minute.
+         */
+        public long retryAfterSeconds() {
+            return Math.min(60, (retryAfterMillis + 999) / 1000);
+        }
+    }
+
+    /**
+     * Token bucket refilled continuously at {@code rate} tokens per second up to {@code burst}.
+     */
+    private static final class TokenBucket {
+        private final double ratePerNano;
+        private final double burst;
+        private double tokens;
+        private long updated;
+
+        TokenBucket(double ratePerSecond, double burst) {
+            this.ratePerNano = ratePerSecond / 1e9;
+            this.burst = burst;
+            this.tokens = burst;
+            this.updated = System.nanoTime();
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise nanos until one is available
+         */
+        synchronized long tryAcquire(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return ratePerNano <= 0 ? Long.MAX_VALUE / 2 : (long) Math.ceil((1 - tokens) / ratePerNano);
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(burst, tokens + 1);
+        }
+
+        synchronized long idleFor(long now) {
+            return now - updated;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - updated) * ratePerNano);
+            updated = now;
+        }
+    }
+}
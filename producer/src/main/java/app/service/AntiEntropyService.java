@@ -0,0 +1,474 @@
+package app.service;
+
+import app.config.RabbitConfig;
+import app.model.ChatMessage;
+import app.model.ContentCodec;
+import app.model.ReplicationMessage;
+import app.repo.ChatMessageBatchWriter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Background anti-entropy between replicas using a hash tree over chat_message.
+ *
+ * Leaves bucket messages by (user shard, UTC day); a leaf digest is the XOR of its row
+ * hashes, a branch digest combines the leaves of one shard, and the root combines all
+ * branches. Each round a node announces its root and branch digests on the anti-entropy
+ * fanout. A peer whose tree differs, and whose node id sorts after the announcer's (so
+ * only one side of each pair starts a repair), replies with its leaf digests for the
+ * divergent shards only, and both sides then push the rows of the divergent leaves to each
+ * other's replication queue, where the usual "newer createdAt wins" upsert applies.
+ * Repair traffic is therefore proportional to the drift, not to the table size.
+ *
+ * The tree is kept current without rescanning the table: {@link ChatMessageBatchWriter}
+ * reports every committed write, and a round rehashes only the shards written since the
+ * last one, reading just their users' rows. Every {@code full-rebuild-rounds} rounds the
+ * whole table is rehashed, catching writes made outside the application.
+ *
+ * With history tiering enabled only days after the hot window's first, partially
+ * tiered day are compared, so rows moved out of {@code chat_message} are not pushed back.
+ */
+@Component
+public class AntiEntropyService {
+
+    private static final Logger log = LoggerFactory.getLogger(AntiEntropyService.class);
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int USERS_PER_QUERY = 500;
+    private static final String SELECT_ROWS =
+            "SELECT id, user_id, role, content, content_z, created_at FROM chat_message ";
+
+    private final JdbcTemplate jdbc;
+    private final RabbitTemplate rabbitTemplate;
+    private final String controlQueue;
+    private final String replicationQueue;
+    private final boolean enabled;
+    private final int shards;
+    private final int hotDays; // 0 when tiering is off
+    private final int fullRebuildRounds; // 0: only the first round scans everything
+
+    // Users seen per shard, so a dirty shard is rehashed from its users' rows only
+    private final List<Set<String>> usersByShard;
+    private final Set<Integer> dirtyShards = ConcurrentHashMap.newKeySet();
+    private int roundsSinceRebuild; // guarded by this
+
+    private final Counter rounds;
+    private final Counter divergentLeaves;
+    private final Counter rowsSent;
+
+    private volatile Tree tree;
+
+    public AntiEntropyService(JdbcTemplate jdbc,
+                              RabbitTemplate rabbitTemplate,
+                              Queue antiEntropyQueue,
+                              Queue replicationQueue,
+                              MeterRegistry registry,
+                              @Value("${chat.antientropy.enabled:true}") boolean enabled,
+                              @Value("${chat.antientropy.shards:64}") int shards,
+                              @Value("${chat.antientropy.full-rebuild-rounds:12}") int fullRebuildRounds,
+                              @Value("${chat.tier.enabled:false}") boolean tiering,
+                              @Value("${chat.tier.hot-days:30}") int hotDays) {
+        this.jdbc = jdbc;
+        this.rabbitTemplate = rabbitTemplate;
+        this.controlQueue = antiEntropyQueue.getName();
+        this.replicationQueue = replicationQueue.getName();
+        this.enabled = enabled;
+        this.shards = Math.max(1, shards);
+        this.hotDays = tiering ? Math.max(1, hotDays) : 0;
+        this.fullRebuildRounds = Math.max(0, fullRebuildRounds);
+        this.usersByShard = new ArrayList<>(this.shards);
+        for (int i = 0; i < this.shards; i++) {
+            usersByShard.add(ConcurrentHashMap.newKeySet());
+        }
+
+        this.rounds = Counter.builder("chat.antientropy.rounds").register(registry);
+        this.divergentLeaves = Counter.builder("chat.antientropy.divergent_leaves").register(registry);
+        this.rowsSent = Counter.builder("chat.antientropy.rows_sent").register(registry);
+    }
+
+    /**
+     * Brings the local tree up to date and announces its root and branch digests to all peers.
+     */
+    @Scheduled(initialDelayString = "${chat.antientropy.interval-ms:300000}",
+               fixedDelayString = "${chat.antientropy.interval-ms:300000}")
+    public void round() {
+        if (!enabled) {
+            return;
+        }
+        Tree current = refresh();
+        rounds.increment();
+
+        Map<String, Object> announce = new HashMap<>();
+        announce.put("type", "root");
+        announce.put("node", controlQueue);
+        announce.put("controlQueue", controlQueue);
+        announce.put("replicationQueue", replicationQueue);
+        announce.put("shards", shards);
+        announce.put("root", current.root);
+        announce.put("branches", toList(current.branches));
+        rabbitTemplate.convertAndSend(RabbitConfig.ANTI_ENTROPY_EXCHANGE, "", announce);
+    }
+
+    @RabbitListener(queues = "#{antiEntropyQueue.name}")
+    public void onControl(Map<String, Object> msg) {
+        if (!enabled || controlQueue.equals(msg.get("node"))) {
+            return; // our own announcement
+        }
+        try {
+            switch (String.valueOf(msg.get("type"))) {
+                case "root" -> onRoot(msg);
+                case "leaves" -> onLeaves(msg);
+                case "rows-request" -> onRowsRequest(msg);
+                default -> log.warn("Unknown anti-entropy control message type={}", msg.get("type"));
+            }
+        } catch (Exception e) {
+            log.error("Failed to handle anti-entropy message type={}", msg.get("type"), e);
+        }
+    }
+
+    /**
+     * Rows committed to chat_message: marks their shards for rehashing in the next round.
+     */
+    public void changed(Collection<ChatMessage> applied) {
+        if (!enabled) {
+            return;
+        }
+        for (ChatMessage msg : applied) {
+            int shard = shardOf(msg.getUserId());
+            if (msg.getUserId() != null) {
+                usersByShard.get(shard).add(msg.getUserId());
+            }
+            dirtyShards.add(shard);
+        }
+    }
+
+    /**
+     * A peer announced its root: reply with our leaf digests for every branch that differs.
+     * Only the node whose id sorts after the announcer's replies; the other one ignores the
+     * announcement and repairs the pair when its own announcement is answered.
+     */
+    private void onRoot(Map<String, Object> msg) {
+        if (controlQueue.compareTo(String.valueOf(msg.get("node"))) < 0) {
+            return;
+        }
+        if (((Number) msg.get("shards")).intValue() != shards) {
+            log.warn("Anti-entropy peer={} uses a different shard count, skipping", msg.get("node"));
+            return;
+        }
+        Tree current = currentTree();
+        if (((Number) msg.get("root")).longValue() == current.root) {
+            return;
+        }
+
+        long[] theirBranches = toLongArray(msg.get("branches"));
+        List<List<Long>> leaves = new ArrayList<>();
+        List<Long> divergentShards = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            if (theirBranches[shard] == current.branches[shard]) {
+                continue;
+            }
+            divergentShards.add((long) shard);
+            for (var leaf : current.leaves.get(shard).entrySet()) {
+                leaves.add(List.of((long) shard, leaf.getKey(), leaf.getValue()));
+            }
+        }
+
+        Map<String, Object> reply = new HashMap<>();
+        reply.put("type", "leaves");
+        reply.put("node", controlQueue);
+        reply.put("controlQueue", controlQueue);
+        reply.put("replicationQueue", replicationQueue);
+        reply.put("divergentShards", divergentShards);
+        reply.put("leaves", leaves);
+        rabbitTemplate.convertAndSend("", (String) msg.get("controlQueue"), reply);
+    }
+
+    /**
+     * A peer sent its leaf digests for divergent shards: push our rows of every differing
+     * leaf to the peer and ask it to push its rows of the same leaves to us.
+     */
+    @SuppressWarnings("unchecked")
+    private void onLeaves(Map<String, Object> msg) {
+        Tree current = currentTree();
+
+        Map<Integer, Map<Long, Long>> theirs = new HashMap<>();
+        for (Object s : (List<Object>) msg.get("divergentShards")) {
+            theirs.put(((Number) s).intValue(), new HashMap<>());
+        }
+        for (List<Number> leaf : (List<List<Number>>) msg.get("leaves")) {
+            theirs.computeIfAbsent(leaf.get(0).intValue(), k -> new HashMap<>())
+                    .put(leaf.get(1).longValue(), leaf.get(2).longValue());
+        }
+
+        List<List<Long>> divergent = new ArrayList<>();
+        for (var shardEntry : theirs.entrySet()) {
+            int shard = shardEntry.getKey();
+            if (shard < 0 || shard >= shards) {
+                continue;
+            }
+            NavigableMap<Long, Long> ours = current.leaves.get(shard);
+            TreeSet<Long> days = new TreeSet<>(ours.keySet());
+            days.addAll(shardEntry.getValue().keySet());
+            for (long day : days.tailSet(horizonDay())) {
+                if (!ours.getOrDefault(day, 0L).equals(shardEntry.getValue().getOrDefault(day, 0L))) {
+                    divergent.add(List.of((long) shard, day));
+                }
+            }
+        }
+        if (divergent.isEmpty()) {
+            return;
+        }
+        divergentLeaves.increment(divergent.size());
+        log.info("Anti-entropy divergentLeaves={} peer={}", divergent.size(), msg.get("node"));
+
+        sendRows(divergent, (String) msg.get("replicationQueue"));
+
+        Map<String, Object> request = new HashMap<>();
+        request.put("type", "rows-request");
+        request.put("node", controlQueue);
+        request.put("replicationQueue", replicationQueue);
+        request.put("leaves", divergent);
+        rabbitTemplate.convertAndSend("", (String) msg.get("controlQueue"), request);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onRowsRequest(Map<String, Object> msg) {
+        List<List<Long>> leaves = new ArrayList<>();
+        for (List<Number> leaf : (List<List<Number>>) msg.get("leaves")) {
+            leaves.add(List.of(leaf.get(0).longValue(), leaf.get(1).longValue()));
+        }
+        sendRows(leaves, (String) msg.get("replicationQueue"));
+    }
+
+    /**
+     * Publishes every local row of the given (shard, day) leaves to a peer's replication queue.
+     */
+    private void sendRows(List<List<Long>> leaves, String targetQueue) {
+        Map<Integer, Set<Long>> daysByShard = new TreeMap<>();
+        long horizon = horizonDay();
+        for (List<Long> leaf : leaves) {
+            int shard = leaf.get(0).intValue();
+            if (shard < 0 || shard >= shards) {
+                continue;
+            }
+            if (leaf.get(1) < horizon) {
+                continue; // tiered out here; the peer keeps its own copy until it tiers it
+            }
+            daysByShard.computeIfAbsent(shard, k -> new TreeSet<>()).add(leaf.get(1));
+        }
+
+        RowCallbackHandler send = rs -> {
+            rabbitTemplate.convertAndSend("", targetQueue, new ReplicationMessage(
+                    rs.getString(1), rs.getString(2), rs.getString(3),
+                    ContentCodec.decode(rs.getString(4), rs.getBytes(5)), rs.getObject(6, Instant.class)));
+            rowsSent.increment();
+        };
+        for (var entry : daysByShard.entrySet()) {
+            for (long day : entry.getValue()) {
+                Instant from = LocalDate.ofEpochDay(day).atStartOfDay().toInstant(ZoneOffset.UTC);
+                queryShard(entry.getKey(), from, from.plusSeconds(86_400), send);
+            }
+        }
+    }
+
+    private Tree currentTree() {
+        Tree current = tree;
+        return current != null ? current : refresh();
+    }
+
+    /**
+     * Rehashes the shards written since the last round, or every shard on the first round and
+     * every {@code full-rebuild-rounds} rounds after that.
+     */
+    private synchronized Tree refresh() {
+        Tree current = tree;
+        if (current == null || (fullRebuildRounds > 0 && ++roundsSinceRebuild >= fullRebuildRounds)) {
+            return rebuild();
+        }
+        long horizon = horizonDay();
+        List<NavigableMap<Long, Long>> leaves = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            NavigableMap<Long, Long> old = current.leaves.get(shard);
+            if (dirtyShards.remove(shard)) {
+                leaves.add(scanShard(shard));
+            } else if (old.isEmpty() || old.firstKey() >= horizon) {
+                leaves.add(old);
+            } else {
+                leaves.add(new TreeMap<>(old.tailMap(horizon, true))); // days that fell out of the window
+            }
+        }
+        return publish(leaves);
+    }
+
+    /**
+     * Scans chat_message and recomputes every leaf, branch and the root digest.
+     */
+    private synchronized Tree rebuild() {
+        // Cleared first: a write committed during the scan marks its shard again
+        dirtyShards.clear();
+        roundsSinceRebuild = 0;
+        List<NavigableMap<Long, Long>> leaves = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            leaves.add(new TreeMap<>());
+        }
+        jdbc.query(SELECT_ROWS + "WHERE created_at >= ?", rs -> {
+            addRow(rs, leaves::get);
+        }, horizonInstant());
+        return publish(leaves);
+    }
+
+    /**
+     * Recomputes one shard's leaves from the rows of the users known to hash into it.
+     */
+    private NavigableMap<Long, Long> scanShard(int shard) {
+        NavigableMap<Long, Long> leaves = new TreeMap<>();
+        queryShard(shard, horizonInstant(), null, rs -> {
+            addRow(rs, s -> leaves);
+        });
+        return leaves;
+    }
+
+    /**
+     * Reads the rows of the users known to hash into the shard, created in [from, to) (no upper
+     * bound when {@code to} is null), a chunk of users per query so the (user_id, created_at)
+     * index serves it.
+     */
+    private void queryShard(int shard, Instant from, Instant to, RowCallbackHandler handler) {
+        List<String> users = new ArrayList<>(usersByShard.get(shard));
+        for (int i = 0; i < users.size(); i += USERS_PER_QUERY) {
+            List<String> chunk = users.subList(i, Math.min(users.size(), i + USERS_PER_QUERY));
+            List<Object> args = new ArrayList<>(chunk);
+            args.add(from);
+            if (to != null) {
+                args.add(to);
+            }
+            jdbc.query(SELECT_ROWS + "WHERE user_id IN (" + String.join(",", Collections.nCopies(chunk.size(), "?")) +
+                       ") AND created_at >= ?" + (to != null ? " AND created_at < ?" : ""), handler, args.toArray());
+        }
+    }
+
+    private void addRow(ResultSet rs, IntFunction<NavigableMap<Long, Long>> leavesOf) throws SQLException {
+        String userId = rs.getString(2);
+        Instant createdAt = rs.getObject(6, Instant.class);
+        long day = createdAt.atZone(ZoneOffset.UTC).toLocalDate().toEpochDay();
+        // Hashed on the text, so peers agree whatever their compression settings
+        String content = ContentCodec.decode(rs.getString(4), rs.getBytes(5));
+        long rowHash = rowHash(rs.getString(1), userId, rs.getString(3), content, createdAt);
+        int shard = shardOf(userId);
+        if (userId != null) {
+            usersByShard.get(shard).add(userId);
+        }
+        leavesOf.apply(shard).merge(day, rowHash, (a, b) -> a ^ b);
+    }
+
+    /**
+     * Combines the leaves into branch and root digests and makes the result the current tree.
+     */
+    private Tree publish(List<NavigableMap<Long, Long>> leaves) {
+        long[] branches = new long[shards];
+        long root = FNV_OFFSET;
+        for (int shard = 0; shard < shards; shard++) {
+            long branch = FNV_OFFSET;
+            for (var leaf : leaves.get(shard).entrySet()) {
+                branch = mix(mix(branch, leaf.getKey()), leaf.getValue());
+            }
+            branches[shard] = branch;
+            root = mix(root, branch);
+        }
+
+        Tree rebuilt = new Tree(root, branches, leaves);
+        this.tree = rebuilt;
+        return rebuilt;
+    }
+
+    private Instant horizonInstant() {
+        return LocalDate.ofEpochDay(Math.max(0, horizonDay())).atStartOfDay().toInstant(ZoneOffset.UTC);
+    }
+
+    /**
+     * First UTC day that is compared: the day after the hot window starts, or 0.
+     */
+    private long horizonDay() {
+        if (hotDays == 0) {
+            return 0;
+        }
+        return LocalDate.now(ZoneOffset.UTC).minusDays(hotDays).toEpochDay() + 1;
+    }
+
+    private int shardOf(String userId) {
+        return Math.floorMod(userId == null ? 0 : userId.hashCode(), shards);
+    }
+
+    private static long rowHash(String id, String userId, String role, String content, Instant createdAt) {
+        long h = FNV_OFFSET;
+        for (String part : new String[] { id, userId, role, content, createdAt.toString() }) {
+            if (part != null) {
+                for (byte b : part.getBytes(StandardCharsets.UTF_8)) {
+                    h = (h ^ (b & 0xff)) * FNV_PRIME;
+                }
+            }
+            h = (h ^ 0xff) * FNV_PRIME; // field separator
+        }
+        return h;
+    }
+
+    private static long mix(long h, long value) {
+        for (int i = 0; i < 8; i++) {
+            h = (h ^ ((value >>> (i * 8)) & 0xff)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static List<Long> toList(long[] values) {
+        List<Long> out = new ArrayList<>(values.length);
+        for (long v : values) {
+            out.add(v);
+        }
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long[] toLongArray(Object value) {
+        List<Number> list = (List<Number>) value;
+        long[] out = new long[list.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = list.get(i).longValue();
+        }
+        return out;
+    }
+
+    /**
+     * Immutable hash tree: leaves per shard keyed by epoch day.
+     */
+    private record Tree(long root, long[] branches, List<NavigableMap<Long, Long>> leaves) {}
+}
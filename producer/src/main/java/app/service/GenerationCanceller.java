@@ -0,0 +1,107 @@
+package app.service;
+
+import app.config.RabbitConfig;
+import app.model.ControlMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops generations nobody is listening to, so workers free the LLM stream and the slot.
+ *
+ * Cancels are published on {@value RabbitConfig#CONTROL_EXCHANGE}, keyed by user and
+ * generation id, and fanned out to every worker. They are sent when
+ *  - the user's last SSE connection closed mid-stream and none came back within
+ *    {@code disconnect-grace-ms} (EventSource reconnects on its own after network blips), or
+ *  - the client asks for it ({@code DELETE /chat/stream/{userId}}).
+ * The worker keeps what was generated as a partial reply. A generation that has not
+ * streamed a token to this node yet has no known id; only an explicit cancel reaches it.
+ */
+@Component
+public class GenerationCanceller {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationCanceller.class);
+
+    private final StreamService streams;
+    private final RabbitTemplate rabbitTemplate;
+    private final boolean onDisconnect;
+    private final long graceMillis;
+    private final Counter clientCancels;
+    private final Counter disconnectCancels;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "generation-canceller");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public GenerationCanceller(StreamService streams, RabbitTemplate rabbitTemplate, MeterRegistry registry,
+                               @Value("${chat.cancel.on-disconnect:true}") boolean onDisconnect,
+                               @Value("${chat.cancel.disconnect-grace-ms:5000}") long graceMillis) {
+        this.streams = streams;
+        this.rabbitTemplate = rabbitTemplate;
+        this.clientCancels = cancelCounter(registry, ControlMessage.REASON_CLIENT);
+        this.disconnectCancels = cancelCounter(registry, ControlMessage.REASON_DISCONNECT);
+        this.onDisconnect = onDisconnect;
+        this.graceMillis = Math.max(0, graceMillis);
+        streams.onLastDisconnect(this::disconnected);
+    }
+
+    /**
+     * Cancels the user's current generation at the client's request.
+     *
+     * @return the id of the generation streaming here, or null if none is known, in which
+     *         case whichever generation of the user is running gets cancelled
+     */
+    public String cancel(String userId) {
+        String generationId = streams.activeGeneration(userId);
+        publish(userId, generationId, ControlMessage.REASON_CLIENT, clientCancels);
+        return generationId;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void disconnected(String userId) {
+        if (!onDisconnect || streams.activeGeneration(userId) == null) {
+            return;
+        }
+        timer.schedule(() -> {
+            String generationId = streams.activeGeneration(userId);
+            if (generationId != null && !streams.isConnected(userId)) {
+                publish(userId, generationId, ControlMessage.REASON_DISCONNECT, disconnectCancels);
+            }
+        }, graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static Counter cancelCounter(MeterRegistry registry, String reason) {
+        return Counter.builder("chat.generation.cancels")
+                .description("Generation cancels sent to the workers")
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    private void publish(String userId, String generationId, String reason, Counter sent) {
+        try {
+            rabbitTemplate.convertAndSend(RabbitConfig.CONTROL_EXCHANGE, "",
+                    ControlMessage.cancel(userId, generationId, reason));
+            sent.increment();
+            log.debug("Sent cancel user={} generationId={} reason={}", userId, generationId, reason);
+        } catch (AmqpException e) {
+            // Best effort: the generation just runs to completion
+            log.warn("Failed to send cancel user={} generationId={}: {}", userId, generationId, e.getMessage());
+        }
+    }
+}
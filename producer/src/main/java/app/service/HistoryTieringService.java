@@ -0,0 +1,145 @@
+package app.service;
+
+import app.model.ChatMessage;
+import app.repo.ChatMessageStore;
+import app.repo.ColdHistoryStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves old conversations out of the hot {@code chat_message} table.
+ *
+ * Each pass takes messages older than {@code hot-days}, in batches of
+ * {@code batch-size}, writes them per user to the {@link ColdHistoryStore} and then
+ * deletes them from the table, so indexes, history queries and replica resyncs only
+ * cover the hot window. A crash between the two steps leaves a message in both tiers,
+ * which the next pass archives again and readers return once. With {@code archive=false}
+ * old messages are deleted instead; cold segments are deleted once older than
+ * {@code cold.retention-days} (0 keeps them).
+ */
+@Component
+public class HistoryTieringService {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoryTieringService.class);
+
+    private static final String SELECT_OLD =
+            "SELECT id, user_id, role, content, content_z, created_at FROM chat_message " +
+            "WHERE created_at < ? ORDER BY user_id, created_at, id LIMIT ?";
+
+    private final JdbcTemplate jdbc;
+    private final ColdHistoryStore cold;
+    private final ChatMessageStore store;
+    private final boolean enabled;
+    private final boolean archive;
+    private final Duration hotAge;
+    private final Duration coldRetention;
+    private final int batchSize;
+
+    private final Counter archived;
+    private final Counter deleted;
+
+    public HistoryTieringService(JdbcTemplate jdbc, ColdHistoryStore cold, ChatMessageStore store,
+                                 MeterRegistry registry,
+                                 @Value("${chat.tier.enabled:false}") boolean enabled,
+                                 @Value("${chat.tier.archive:true}") boolean archive,
+                                 @Value("${chat.tier.hot-days:30}") int hotDays,
+                                 @Value("${chat.tier.cold.retention-days:0}") int coldRetentionDays,
+                                 @Value("${chat.tier.batch-size:5000}") int batchSize) {
+        this.jdbc = jdbc;
+        this.cold = cold;
+        this.store = store;
+        this.enabled = enabled;
+        this.archive = archive;
+        this.hotAge = Duration.ofDays(Math.max(1, hotDays));
+        this.coldRetention = Duration.ofDays(Math.max(0, coldRetentionDays));
+        this.batchSize = Math.max(1, batchSize);
+
+        this.archived = Counter.builder("chat.tier.archived")
+                .description("Messages moved to the cold tier")
+                .register(registry);
+        this.deleted = Counter.builder("chat.tier.deleted")
+                .description("Messages removed from chat_message by retention")
+                .register(registry);
+    }
+
+    @Scheduled(initialDelayString = "${chat.tier.interval-ms:3600000}",
+               fixedDelayString = "${chat.tier.interval-ms:3600000}")
+    public void run() {
+        if (!enabled) {
+            return;
+        }
+        Instant now = Instant.now();
+        long start = System.currentTimeMillis();
+        long moved = 0;
+        try {
+            int n;
+            do {
+                n = tierBatch(now.minus(hotAge));
+                moved += n;
+            } while (n == batchSize);
+
+            int purged = coldRetention.isZero() ? 0 : cold.purgeBefore(now.minus(coldRetention));
+            if (moved > 0 || purged > 0) {
+                log.info("History tiering messages={} archive={} coldSegmentsPurged={} tookMs={}",
+                        moved, archive, purged, System.currentTimeMillis() - start);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("History tiering failed after messages={}: {}", moved, e.getMessage());
+        }
+    }
+
+    /**
+     * Archives (unless disabled) and deletes one batch of messages older than the cutoff.
+     *
+     * @return messages read
+     */
+    private int tierBatch(Instant cutoff) throws IOException {
+        List<ChatMessage> batch = jdbc.query(SELECT_OLD, (rs, i) -> new ChatMessage(
+                rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getBytes(5),
+                rs.getObject(6, Instant.class)), cutoff, batchSize);
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        if (archive) {
+            Map<String, List<ChatMessage>> byUser = new LinkedHashMap<>();
+            for (ChatMessage m : batch) {
+                byUser.computeIfAbsent(m.getUserId(), u -> new ArrayList<>()).add(m);
+            }
+            for (var entry : byUser.entrySet()) {
+                cold.archive(entry.getKey(), entry.getValue());
+            }
+            archived.increment(batch.size());
+        }
+
+        // Matched on createdAt too: a row updated by replication since it was read stays hot
+        int[][] counts = jdbc.batchUpdate("DELETE FROM chat_message WHERE id = ? AND created_at = ?",
+                batch, batch.size(), (ps, m) -> {
+                    ps.setString(1, m.getId());
+                    ps.setObject(2, m.getCreatedAt());
+                });
+        List<String> removed = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (counts[0][i] != 0) {
+                removed.add(batch.get(i).getId());
+            }
+        }
+        store.removed(removed);
+        deleted.increment(removed.size());
+        return batch.size();
+    }
+}
@@ -0,0 +1,186 @@
+package app.service;
+
+import app.repo.Outbox;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes committed {@link Outbox} rows to RabbitMQ.
+ *
+ * Each pass reads up to {@code batch-size} rows in sequence order and publishes them
+ * back to back with correlated publisher confirms, so the broker round trips overlap.
+ * Rows are deleted, in one batch, only once their confirm has arrived; rows that were
+ * nacked or not confirmed within {@code confirm-timeout-ms} stay and are published again
+ * on a later pass. Delivery is therefore at least once. Consumers already tolerate
+ * duplicates: replication is an idempotent upsert and the worker may see a redelivery.
+ *
+ * The relay runs when a commit wakes it and otherwise polls every {@code poll-ms}.
+ */
+@Component
+public class OutboxRelay {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxRelay.class);
+
+    private final Outbox outbox;
+    private final RabbitTemplate rabbitTemplate;
+    private final int batchSize;
+    private final long pollMillis;
+    private final long confirmTimeoutMillis;
+
+    private final Semaphore wakeups = new Semaphore(0);
+    private final AtomicLong lastBatch = new AtomicLong();
+    private volatile boolean running;
+    private Thread relay;
+
+    private final Counter published;
+    private final Counter unconfirmed;
+    private final Timer batchTimer;
+
+    public OutboxRelay(Outbox outbox, RabbitTemplate rabbitTemplate, MeterRegistry registry,
+                       @Value("${chat.outbox.batch-size:500}") int batchSize,
+                       @Value("${chat.outbox.poll-ms:1000}") long pollMillis,
+                       @Value("${chat.outbox.confirm-timeout-ms:5000}") long confirmTimeoutMillis) {
+        this.outbox = outbox;
+        this.rabbitTemplate = rabbitTemplate;
+        this.batchSize = Math.max(1, batchSize);
+        this.pollMillis = Math.max(1, pollMillis);
+        this.confirmTimeoutMillis = confirmTimeoutMillis;
+
+        this.published = Counter.builder("chat.outbox.published")
+                .description("Outbox rows confirmed by the broker")
+                .register(registry);
+        this.unconfirmed = Counter.builder("chat.outbox.unconfirmed")
+                .description("Outbox publishes nacked or timed out, to be retried")
+                .register(registry);
+        this.batchTimer = Timer.builder("chat.outbox.batch")
+                .description("Time to publish and confirm one outbox batch")
+                .publishPercentileHistogram()
+                .register(registry);
+        Gauge.builder("chat.outbox.last_batch", lastBatch, AtomicLong::get)
+                .description("Rows read by the last relay pass")
+                .register(registry);
+    }
+
+    /**
+     * Starts after the schema exists and the rows left by a previous run can be sent.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (relay != null) {
+            return;
+        }
+        running = true;
+        relay = new Thread(this::run, "outbox-relay");
+        relay.setDaemon(true);
+        relay.start();
+        log.info("Outbox relay started pending={}", outbox.count());
+    }
+
+    /**
+     * Signals that new rows have been committed.
+     */
+    public void wakeUp() {
+        if (wakeups.availablePermits() == 0) {
+            wakeups.release();
+        }
+    }
+
+    private void run() {
+        long backoff = 0;
+        while (running) {
+            try {
+                if (backoff > 0) {
+                    Thread.sleep(backoff);
+                }
+                int sent = relayBatch();
+                backoff = 0;
+                if (sent < batchSize) {
+                    // Caught up: wait for the next commit
+                    wakeups.tryAcquire(pollMillis, TimeUnit.MILLISECONDS);
+                    wakeups.drainPermits();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                backoff = Math.min(Math.max(backoff * 2, 100), 5000);
+                log.warn("Outbox relay pass failed, retrying in {} ms: {}", backoff, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Publishes one batch and deletes the confirmed rows.
+     *
+     * @return rows read
+     */
+    private int relayBatch() throws InterruptedException {
+        List<Outbox.Entry> batch = outbox.readBatch(batchSize);
+        lastBatch.set(batch.size());
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        List<CorrelationData> confirms = new ArrayList<>(batch.size());
+        for (Outbox.Entry entry : batch) {
+            CorrelationData correlation = new CorrelationData(Long.toString(entry.seq()));
+            Outbox.Publish p = entry.publish();
+            rabbitTemplate.send(p.exchange(), p.routingKey(), p.toMessage(), correlation);
+            confirms.add(correlation);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMillis);
+        List<Long> confirmed = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                if (confirms.get(i).getFuture().get(remaining, TimeUnit.NANOSECONDS).isAck()) {
+                    confirmed.add(batch.get(i).seq());
+                }
+            } catch (ExecutionException | TimeoutException e) {
+                // Left in the outbox for the next pass
+            }
+        }
+
+        if (!confirmed.isEmpty()) {
+            outbox.delete(confirmed);
+            published.increment(confirmed.size());
+        }
+        batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        int missing = batch.size() - confirmed.size();
+        if (missing > 0) {
+            unconfirmed.increment(missing);
+            throw new IllegalStateException(missing + " of " + batch.size() + " publishes not confirmed");
+        }
+        return batch.size();
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() throws InterruptedException {
+        running = false;
+        if (relay != null) {
+            wakeUp();
+            relay.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+}
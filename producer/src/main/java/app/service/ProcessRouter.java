@@ -0,0 +1,57 @@
+package app.service;
+
+import app.config.RabbitConfig;
+import app.model.ProcessMessage;
+import app.model.TriagePriority;
+import app.repo.Outbox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+
+/**
+ * Decides where a user message goes for AI processing ({@code chat.process.routing}).
+ *
+ *  - shared: to the process queue lane of its triage priority; any worker may take it.
+ *  - sharded: to the consistent-hash exchange with the user id as routing key, which
+ *    always picks the same worker's shard queue for a user while the set of workers is
+ *    stable, so the user's messages are answered by a node that has the user's history and
+ *    summary cached. The lane travels as the message priority: messages are answered in
+ *    order within a lane, and an urgent one may overtake the user's earlier routine ones.
+ *
+ * Workers keep consuming the shared lanes in sharded mode, so switching is a rolling change.
+ */
+@Component
+public class ProcessRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessRouter.class);
+
+    public enum Mode { SHARED, SHARDED }
+
+    private final Outbox outbox;
+    private final Mode mode;
+
+    public ProcessRouter(Outbox outbox, @Value("${chat.process.routing:shared}") String mode,
+                         @Value("${chat.admission.enabled:true}") boolean admissionEnabled) {
+        this.outbox = outbox;
+        this.mode = Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        log.info("Process routing: {}", this.mode);
+        if (this.mode == Mode.SHARDED && admissionEnabled) {
+            log.warn("Sharded process routing: admission control does not see the shard queues, "
+                    + "so queue-wait load shedding is inactive (rate limits still apply)");
+        }
+    }
+
+    /**
+     * Encodes the outbox publish that hands the message to a worker.
+     */
+    public Outbox.Publish stage(ProcessMessage message, TriagePriority priority) {
+        return switch (mode) {
+            case SHARED -> outbox.stage("", RabbitConfig.processQueue(priority), message);
+            case SHARDED -> outbox.stage(RabbitConfig.PROCESS_HASH_EXCHANGE, message.userId(), message,
+                    RabbitConfig.processPriority(priority));
+        };
+    }
+}
@@ -0,0 +1,74 @@
+package app.service;
+
+import java.util.Arrays;
+
+/**
+ * Ring buffer of the most recent tokens of one user's current generation.
+ *
+ * Tokens are numbered from 1 within a generation; the SSE event id of a token is
+ * {@code <generationId>:<seq>}. The backing array is handed out by {@link StreamService}
+ * from a pool and reused across generations, so appending never allocates.
+ * Callers synchronize on the buffer.
+ */
+final class ReplayBuffer {
+
+    private final String[] ring;
+    private String generationId;
+    private long lastSeq;
+    private boolean done;
+    private long touchedAt;
+
+    ReplayBuffer(String[] ring) {
+        this.ring = ring;
+    }
+
+    /**
+     * Starts a new generation, discarding the previous one.
+     */
+    void reset(String generationId) {
+        this.generationId = generationId;
+        this.lastSeq = 0;
+        this.done = false;
+        this.touchedAt = System.currentTimeMillis();
+    }
+
+    long append(String token) {
+        lastSeq++;
+        ring[(int) (lastSeq % ring.length)] = token;
+        touchedAt = System.currentTimeMillis();
+        return lastSeq;
+    }
+
+    /**
+     * Oldest sequence number still held in the ring.
+     */
+    long oldestSeq() {
+        return Math.max(1, lastSeq - ring.length + 1);
+    }
+
+    String get(long seq) {
+        return ring[(int) (seq % ring.length)];
+    }
+
+    String eventId(long seq) {
+        return generationId + ":" + seq;
+    }
+
+    void markDone() {
+        done = true;
+        touchedAt = System.currentTimeMillis();
+    }
+
+    String generationId() { return generationId; }
+    long lastSeq() { return lastSeq; }
+    boolean isDone() { return done; }
+    long touchedAt() { return touchedAt; }
+
+    /**
+     * Releases the ring for reuse; clears token references so they can be collected.
+     */
+    String[] release() {
+        Arrays.fill(ring, null);
+        return ring;
+    }
+}
@@ -0,0 +1,213 @@
+package app.service;
+
+import app.controller.ReplicationController;
+import app.model.ChatMessage;
+import app.repo.ChatMessageBatchWriter;
+import app.repo.ChatMessageRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Brings a new node up to date before it starts consuming.
+ *
+ *  1. Declares this node's durable replication queue so live updates are buffered.
+ *  2. Streams a snapshot of chat_message from a peer ({@code chat.replication.bootstrap.peer-url}).
+ *  3. Replays the peer's replication log from the snapshot's sequence number.
+ *  4. Starts the listener containers that were held back.
+ *
+ * Spring Boot only reports the application as ready once runners have completed,
+ * so the node does not receive traffic until this has finished.
+ */
+@Component
+public class ReplicationBootstrap implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationBootstrap.class);
+
+    private static final int APPLY_BATCH = 1000;
+
+    /** Listeners declared with autoStartup=false that wait for the bootstrap. */
+    private static final List<String> HELD_LISTENERS = List.of("replicationListener");
+
+    private final AmqpAdmin amqpAdmin;
+    private final Queue replicationQueue;
+    private final Binding replicationBinding;
+    private final RabbitListenerEndpointRegistry listenerRegistry;
+    private final ChatMessageRepository repo;
+    private final ChatMessageBatchWriter writer;
+    private final ObjectMapper mapper;
+
+    private final String peerUrl;
+    private final String token;
+    private final boolean onlyIfEmpty;
+
+    private final HttpClient http = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    public ReplicationBootstrap(AmqpAdmin amqpAdmin,
+                                Queue replicationQueue,
+                                Binding replicationBinding,
+                                RabbitListenerEndpointRegistry listenerRegistry,
+                                ChatMessageRepository repo,
+                                ChatMessageBatchWriter writer,
+                                ObjectMapper mapper,
+                                @Value("${chat.replication.bootstrap.peer-url:}") String peerUrl,
+                                @Value("${chat.replication.token:}") String token,
+                                @Value("${chat.replication.bootstrap.only-if-empty:true}") boolean onlyIfEmpty) {
+        this.amqpAdmin = amqpAdmin;
+        this.replicationQueue = replicationQueue;
+        this.replicationBinding = replicationBinding;
+        this.listenerRegistry = listenerRegistry;
+        this.repo = repo;
+        this.writer = writer;
+        this.mapper = mapper;
+        this.peerUrl = peerUrl;
+        this.token = token;
+        this.onlyIfEmpty = onlyIfEmpty;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        // Buffer live replication traffic while we copy the snapshot
+        try {
+            amqpAdmin.declareQueue(replicationQueue);
+            amqpAdmin.declareBinding(replicationBinding);
+        } catch (AmqpException e) {
+            // RabbitAdmin declares it again as soon as a connection is established
+            log.warn("Broker unavailable, replication queue not pre-declared: {}", e.getMessage());
+        }
+
+        if (peerUrl.isBlank()) {
+            log.info("No bootstrap peer configured, skipping snapshot");
+        } else if (onlyIfEmpty && repo.count() > 0) {
+            log.info("Local data present, resuming from replication queue");
+        } else {
+            if (token.isBlank()) {
+                log.warn("chat.replication.token is not set, peer={} will refuse the snapshot", peerUrl);
+            }
+            try {
+                long seq = loadSnapshot();
+                replayLog(seq);
+            } catch (Exception e) {
+                log.error("Bootstrap from peer={} failed", peerUrl, e);
+            }
+        }
+
+        for (String id : HELD_LISTENERS) {
+            var container = listenerRegistry.getListenerContainer(id);
+            if (container != null && !container.isRunning()) {
+                container.start();
+            }
+        }
+    }
+
+    /**
+     * Streams the peer's snapshot into the local database.
+     *
+     * @return the peer's replication log sequence number the snapshot is consistent with
+     */
+    private long loadSnapshot() throws Exception {
+        HttpRequest request = peerRequest("/replication/snapshot");
+        HttpResponse<InputStream> response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("snapshot returned HTTP " + response.statusCode());
+        }
+
+        long seq;
+        long rows = 0;
+        Instant started = Instant.now();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(response.body(), 64 * 1024), StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IllegalStateException("empty snapshot");
+            }
+            seq = mapper.readTree(header).path("seq").asLong();
+
+            List<ChatMessage> batch = new ArrayList<>(APPLY_BATCH);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                batch.add(toMessage(mapper.readTree(line)));
+                if (batch.size() == APPLY_BATCH) {
+                    writer.upsertNewer(batch);
+                    rows += batch.size();
+                    batch.clear();
+                }
+            }
+            writer.upsertNewer(batch);
+            rows += batch.size();
+        }
+
+        log.info("Loaded snapshot rows={} peer={} tookMs={} seq={}",
+                rows, peerUrl, Duration.between(started, Instant.now()).toMillis(), seq);
+        return seq;
+    }
+
+    /**
+     * Applies the peer's log entries written after the snapshot.
+     */
+    private void replayLog(long seq) throws Exception {
+        long replayed = 0;
+        while (true) {
+            HttpRequest request = peerRequest("/replication/log?afterSeq=" + seq + "&limit=" + APPLY_BATCH);
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("log returned HTTP " + response.statusCode());
+            }
+
+            JsonNode page = mapper.readTree(response.body());
+            JsonNode messages = page.path("messages");
+            if (messages.isEmpty()) {
+                break;
+            }
+            List<ChatMessage> batch = new ArrayList<>(messages.size());
+            messages.forEach(node -> batch.add(toMessage(node)));
+            writer.upsertNewer(batch);
+            replayed += batch.size();
+            seq = page.path("seq").asLong();
+        }
+        log.info("Replayed replication log entries={} upToSeq={}", replayed, seq);
+    }
+
+    private HttpRequest peerRequest(String path) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(peerUrl + path)).GET();
+        if (!token.isBlank()) {
+            request.header(ReplicationController.TOKEN_HEADER, token);
+        }
+        return request.build();
+    }
+
+    private static ChatMessage toMessage(JsonNode node) {
+        return new ChatMessage(
+                node.path("id").asText(),
+                node.path("userId").asText(),
+                node.path("role").asText(),
+                node.path("content").isNull() ? null : node.path("content").asText(),
+                Instant.parse(node.path("createdAt").asText()));
+    }
+}
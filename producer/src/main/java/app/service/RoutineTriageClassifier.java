@@ -0,0 +1,18 @@
+package app.service;
+
+import app.model.TriagePriority;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * No triage ({@code chat.triage.classifier=none}): every message takes the routine lane.
+ */
+@Component
+@ConditionalOnProperty(name = "chat.triage.classifier", havingValue = "none")
+public class RoutineTriageClassifier implements TriageClassifier {
+
+    @Override
+    public TriagePriority classify(String userId, String content) {
+        return TriagePriority.ROUTINE;
+    }
+}
@@ -0,0 +1,75 @@
+package app.service;
+
+import app.model.TriagePriority;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Keyword/regex triage ({@code chat.triage.classifier=rules}).
+ *
+ * {@code chat.triage.urgent-pattern} and {@code chat.triage.high-pattern} are regular
+ * expressions searched in the message after it has been lower-cased and stripped of
+ * accents, so rules are written without them ("dolor en el pecho" also matches
+ * "Dolor en el PÉCHO"). A keyword list is an alternation. The first lane whose pattern
+ * matches wins; an empty pattern disables that lane, and no match means routine.
+ */
+@Component
+@ConditionalOnProperty(name = "chat.triage.classifier", havingValue = "rules", matchIfMissing = true)
+public class RuleTriageClassifier implements TriageClassifier {
+
+    private static final Logger log = LoggerFactory.getLogger(RuleTriageClassifier.class);
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private final Map<TriagePriority, Pattern> rules = new EnumMap<>(TriagePriority.class);
+    private final Map<TriagePriority, Counter> classified = new EnumMap<>(TriagePriority.class);
+
+    public RuleTriageClassifier(MeterRegistry registry,
+                                @Value("${chat.triage.urgent-pattern:}") String urgentPattern,
+                                @Value("${chat.triage.high-pattern:}") String highPattern) {
+        addRule(TriagePriority.URGENT, urgentPattern);
+        addRule(TriagePriority.HIGH, highPattern);
+        for (TriagePriority priority : TriagePriority.values()) {
+            classified.put(priority, Counter.builder("chat.triage.classified")
+                    .description("User messages by assigned triage priority")
+                    .tag("lane", priority.tag())
+                    .register(registry));
+        }
+        log.info("Triage rules loaded for lanes {}", rules.keySet());
+    }
+
+    private void addRule(TriagePriority priority, String pattern) {
+        if (pattern != null && !pattern.isBlank()) {
+            rules.put(priority, Pattern.compile(pattern.trim()));
+        }
+    }
+
+    @Override
+    public TriagePriority classify(String userId, String content) {
+        String text = normalize(content);
+        TriagePriority result = TriagePriority.ROUTINE;
+        for (Map.Entry<TriagePriority, Pattern> rule : rules.entrySet()) { // EnumMap: most urgent first
+            if (rule.getValue().matcher(text).find()) {
+                result = rule.getKey();
+                break;
+            }
+        }
+        classified.get(result).increment();
+        return result;
+    }
+
+    static String normalize(String content) {
+        String decomposed = Normalizer.normalize(content, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,82 +1,516 @@
 package app.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+/**
+ * Fans streamed tokens out to SSE connections without blocking the caller.
+ *
+ * Each connection owns a bounded outbound queue that is drained by a shared writer
+ * pool, so a slow client only ever delays itself. A user may hold several connections
+ * (e.g. multiple tabs); every one of them receives the stream. When a queue is full the
+ * configured slow-consumer policy applies:
+ *  - drop: discard the new token,
+ *  - coalesce: append the token to the last queued one,
+ *  - disconnect: close the connection.
+ * Idle connections get periodic heartbeat comments so proxies keep them open.
+ *
+ * Every token event carries an id {@code <generationId>:<seq>}, and the tail of each
+ * user's current generation is kept in a pooled {@link ReplayBuffer}. A client that
+ * reconnects with {@code Last-Event-ID} is replayed only the tokens it missed.
+ * A generation the worker cancelled for a newer message is announced with a
+ * {@code superseded} event, telling clients to drop the partial reply.
+ */
 @Service
 public class StreamService {
 
-    // Hold active emitters by user ID
-    private final Map<String, SseEmitter> emitters = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(StreamService.class);
+
+    public enum SlowConsumerPolicy { DROP, COALESCE, DISCONNECT }
+
+    // Active connections by user ID
+    private final Map<String, Set<Connection>> subscribers = new ConcurrentHashMap<>();
+
+    // Replay buffer of each user's current (or last) generation
+    private final Map<String, ReplayBuffer> buffers = new ConcurrentHashMap<>();
+    private final ArrayDeque<String[]> ringPool = new ArrayDeque<>(); // guarded by itself
+
+    private final int queueCapacity;
+    private final SlowConsumerPolicy policy;
+    private final long heartbeatMillis;
+    private final int replayCapacity;
+    private final long replayRetentionMillis;
+
+    private final ExecutorService writers;
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sse-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Counter dropped;
+    private final Counter coalesced;
+    private final Counter disconnected;
+    private final Timer sendLatency;
+    private final AtomicInteger activeEmitters = new AtomicInteger();
+    private volatile Consumer<String> lastDisconnectListener = userId -> {};
+
+    public StreamService(MeterRegistry registry,
+                         @Value("${chat.sse.queue-capacity:256}") int queueCapacity,
+                         @Value("${chat.sse.slow-consumer-policy:coalesce}") String policy,
+                         @Value("${chat.sse.heartbeat-ms:15000}") long heartbeatMillis,
+                         @Value("${chat.sse.writer-threads:4}") int writerThreads,
+                         @Value("${chat.sse.replay.capacity:2048}") int replayCapacity,
+                         @Value("${chat.sse.replay.retention-ms:60000}") long replayRetentionMillis) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.policy = SlowConsumerPolicy.valueOf(policy.trim().toUpperCase(Locale.ROOT));
+        this.heartbeatMillis = heartbeatMillis;
+        this.replayCapacity = Math.max(1, replayCapacity);
+        this.replayRetentionMillis = replayRetentionMillis;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(Math.max(1, writerThreads), r -> {
+            Thread t = new Thread(r, "sse-writer-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.dropped = Counter.builder("chat.sse.tokens.dropped").register(registry);
+        this.coalesced = Counter.builder("chat.sse.tokens.coalesced").register(registry);
+        this.disconnected = Counter.builder("chat.sse.slow_disconnects").register(registry);
+        this.sendLatency = Timer.builder("chat.sse.send")
+                .description("Time to write one event to an SSE connection")
+                .publishPercentileHistogram()
+                .register(registry);
+        Gauge.builder("chat.sse.emitters", activeEmitters, AtomicInteger::get)
+                .description("Open SSE connections")
+                .register(registry);
+
+        if (heartbeatMillis > 0) {
+            heartbeats.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+        heartbeats.scheduleWithFixedDelay(this::evictReplayBuffers, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates and registers a new SSE connection for the given user.
+     * Existing connections of the same user stay open.
+     *
+     * @param lastEventId the {@code Last-Event-ID} of a reconnecting client, or null
+     */
+    public SseEmitter connect(String userId, String lastEventId) {
+        return connect(userId, lastEventId, new SseEmitter(0L)); // no timeout
+    }
 
     /**
-     * Creates and registers a new SSE emitter for the given user.
+     * Registers an already created emitter (benchmarks pass one that discards events).
      */
-    public SseEmitter connect(String userId) {
-        SseEmitter emitter = new SseEmitter(0L); // no timeout
-        emitters.put(userId, emitter);
+    SseEmitter connect(String userId, String lastEventId, SseEmitter emitter) {
+        Connection connection = new Connection(userId, emitter);
+        activeEmitters.incrementAndGet();
+
+        ReplayBuffer buffer = lastEventId == null ? null : buffers.get(userId);
+        if (buffer == null) {
+            subscribers.computeIfAbsent(userId, k -> new CopyOnWriteArraySet<>()).add(connection);
+        } else {
+            // Register and replay under the buffer lock so no token is missed or sent twice
+            synchronized (buffer) {
+                replay(buffer, connection, lastEventId);
+                if (!buffer.isDone()) {
+                    subscribers.computeIfAbsent(userId, k -> new CopyOnWriteArraySet<>()).add(connection);
+                }
+            }
+        }
 
         emitter.onCompletion(() -> {
-            System.out.println("🧹 SSE completed for user: " + userId);
-            emitters.remove(userId);
+            log.debug("SSE completed userId={}", userId);
+            remove(connection);
         });
 
         emitter.onTimeout(() -> {
-            System.out.println("⏱️ SSE timeout for user: " + userId);
-            emitters.remove(userId);
+            log.debug("SSE timeout userId={}", userId);
+            remove(connection);
         });
 
         emitter.onError((e) -> {
-            System.out.println("❌ SSE error for user: " + userId + " | " + e.getMessage());
-            emitters.remove(userId);
+            log.debug("SSE error userId={} error={}", userId, e.getMessage());
+            remove(connection);
         });
 
-        System.out.println("🔗 SSE connected for user: " + userId);
+        log.debug("SSE connected userId={} lastEventId={}", userId, lastEventId);
         return emitter;
     }
 
     /**
-     * Sends a streaming token to the user's emitter.
+     * Queues a streaming token for every connection of the user.
+     */
+    public void sendToken(String userId, String generationId, String token) {
+        sendTokens(userId, generationId, List.of(token));
+    }
+
+    /**
+     * Queues a frame of streaming tokens for every connection of the user, one SSE event per token.
      */
-    public void sendToken(String userId, String token) {
-    SseEmitter emitter = emitters.get(userId);
-    if (emitter != null) {
-        try {
-            // Encode space-only tokens safely
-            String safeToken = token.replace(" ", "\u00A0"); // non-breaking space
-            emitter.send(SseEmitter.event()
-                    .name("message")
-                    .data(safeToken));
-        } catch (IOException e) {
-            emitter.completeWithError(e);
-            emitters.remove(userId);
+    public void sendTokens(String userId, String generationId, List<String> tokens) {
+        ReplayBuffer buffer = bufferFor(userId, generationId);
+        synchronized (buffer) {
+            Set<Connection> connections = connections(userId);
+            for (String token : tokens) {
+                String id = buffer.eventId(buffer.append(token));
+                for (Connection connection : connections) {
+                    connection.offerToken(token, id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes the stream on every connection of the user once their queues have drained.
+     */
+    public void complete(String userId, String generationId) {
+        ReplayBuffer buffer = bufferFor(userId, generationId);
+        synchronized (buffer) {
+            buffer.markDone();
+            Set<Connection> connections = subscribers.remove(userId);
+            if (connections == null) {
+                log.debug("Completed stream with no subscribers userId={}", userId);
+                return;
+            }
+            log.debug("Completing SSE stream userId={} connections={}", userId, connections.size());
+            String id = buffer.eventId(buffer.lastSeq());
+            connections.forEach(c -> c.offerDone(id));
+        }
+    }
+
+    /**
+     * Tells every connection of the user to discard the tokens of a superseded generation;
+     * the connections stay open for the generation that replaces it.
+     */
+    public void supersede(String userId, String generationId) {
+        ReplayBuffer buffer = bufferFor(userId, generationId);
+        synchronized (buffer) {
+            buffer.reset(generationId); // nothing left to replay
+            connections(userId).forEach(c -> c.offerSuperseded(generationId));
+        }
+    }
+
+    /**
+     * Registers a callback run when the last connection of a user goes away before the
+     * stream completed (closed tab, network loss, slow-consumer disconnect).
+     */
+    public void onLastDisconnect(Consumer<String> listener) {
+        this.lastDisconnectListener = listener;
+    }
+
+    public boolean isConnected(String userId) {
+        return subscribers.containsKey(userId);
+    }
+
+    /**
+     * Id of the user's generation that is streaming and not yet complete, or null if
+     * none is known here (no token has arrived for it yet, or it has finished).
+     */
+    public String activeGeneration(String userId) {
+        ReplayBuffer buffer = buffers.get(userId);
+        if (buffer == null) {
+            return null;
+        }
+        synchronized (buffer) {
+            return buffer.isDone() ? null : buffer.generationId();
         }
     }
-}
 
+    @PreDestroy
+    public void shutdown() {
+        heartbeats.shutdownNow();
+        writers.shutdown();
+    }
 
     /**
-     * Completes the stream and removes the emitter.
+     * Returns the user's replay buffer, starting a new generation if the id changed.
+     * Streams without a generation id (older workers) continue the open generation.
      */
-    public void complete(String userId) {
-        SseEmitter emitter = emitters.get(userId);
-        // if (emitter != null) {
+    private ReplayBuffer bufferFor(String userId, String generationId) {
+        ReplayBuffer buffer = buffers.computeIfAbsent(userId, k -> new ReplayBuffer(borrowRing()));
+        synchronized (buffer) {
+            if (generationId == null) {
+                generationId = buffer.generationId() != null && !buffer.isDone()
+                        ? buffer.generationId()
+                        : UUID.randomUUID().toString();
+            }
+            if (!generationId.equals(buffer.generationId())) {
+                buffer.reset(generationId);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Queues the tokens a reconnecting client missed, plus "done" if the generation has finished.
+     * Caller holds the buffer lock.
+     */
+    private void replay(ReplayBuffer buffer, Connection connection, String lastEventId) {
+        int sep = lastEventId.lastIndexOf(':');
+        long from = 1;
+        if (sep > 0 && lastEventId.substring(0, sep).equals(buffer.generationId())) {
             try {
-                System.out.println("✅ Completing SSE stream for user: " + userId);
-                emitter.send(SseEmitter.event()
-                        .name("done")
-                        .data("done"));
-                emitter.complete();
-                emitters.remove(userId);
-            } catch (IOException e) {
-                System.out.println("⚠️ Error completing stream for " + userId + ": " + e.getMessage());
+                from = Long.parseLong(lastEventId.substring(sep + 1)) + 1;
+            } catch (NumberFormatException ignored) {
+                // unknown id format: replay the whole generation
+            }
+        }
+        from = Math.max(from, buffer.oldestSeq());
+
+        for (long seq = from; seq <= buffer.lastSeq(); seq++) {
+            connection.offerToken(buffer.get(seq), buffer.eventId(seq));
+        }
+        if (buffer.isDone()) {
+            connection.offerDone(buffer.eventId(buffer.lastSeq()));
+        }
+        log.info("Replayed SSE tokens userId={} generationId={} count={}",
+                connection.userId, buffer.generationId(), Math.max(0, buffer.lastSeq() - from + 1));
+    }
+
+    private String[] borrowRing() {
+        synchronized (ringPool) {
+            String[] ring = ringPool.pollFirst();
+            return ring != null ? ring : new String[replayCapacity];
+        }
+    }
+
+    /**
+     * Drops buffers of generations that finished more than the retention ago and pools their rings.
+     */
+    private void evictReplayBuffers() {
+        long cutoff = System.currentTimeMillis() - replayRetentionMillis;
+        buffers.forEach((userId, buffer) -> {
+            synchronized (buffer) {
+                if (buffer.isDone() && buffer.touchedAt() < cutoff && buffers.remove(userId, buffer)) {
+                    synchronized (ringPool) {
+                        ringPool.addFirst(buffer.release());
+                    }
+                }
             }
-        // } else {
-        //     System.out.println("🚫 Tried to complete, but no emitter found for " + userId);
-        // }
+        });
+    }
+
+    private Set<Connection> connections(String userId) {
+        Set<Connection> connections = subscribers.get(userId);
+        return connections != null ? connections : Set.of();
+    }
+
+    private void remove(Connection connection) {
+        if (connection.released.compareAndSet(false, true)) {
+            activeEmitters.decrementAndGet();
+        }
+        boolean[] last = new boolean[1];
+        subscribers.computeIfPresent(connection.userId, (k, set) -> {
+            last[0] = set.remove(connection) && set.isEmpty();
+            return set.isEmpty() ? null : set;
+        });
+        if (last[0]) {
+            lastDisconnectListener.accept(connection.userId);
+        }
+    }
+
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        subscribers.values().forEach(set -> set.forEach(c -> c.heartbeatIfIdle(now)));
+    }
+
+    private enum Kind { TOKEN, DONE, SUPERSEDED, HEARTBEAT }
+
+    /**
+     * One SSE connection with its bounded outbound queue.
+     * At most one writer task drains a connection at a time, preserving event order.
+     */
+    private final class Connection {
+
+        private final String userId;
+        private final SseEmitter emitter;
+        private final AtomicBoolean released = new AtomicBoolean(); // counted out of activeEmitters
+
+        // Guarded by "this"
+        private final ArrayDeque<Kind> kinds = new ArrayDeque<>();
+        private final ArrayDeque<StringBuilder> data = new ArrayDeque<>();
+        private final ArrayDeque<String> ids = new ArrayDeque<>(); // SSE event id, null for heartbeats
+        private boolean draining;
+        private boolean closed;
+        private long lastWrite = System.currentTimeMillis();
+
+        Connection(String userId, SseEmitter emitter) {
+            this.userId = userId;
+            this.emitter = emitter;
+        }
+
+        /**
+         * @return false if the connection is closed (or was closed by the slow-consumer policy)
+         */
+        boolean offerToken(String token, String id) {
+            boolean slow = false;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                if (kinds.size() >= queueCapacity) {
+                    switch (policy) {
+                        case DROP -> {
+                            dropped.increment();
+                            return true;
+                        }
+                        case COALESCE -> {
+                            if (kinds.peekLast() == Kind.TOKEN) {
+                                data.peekLast().append(token);
+                                // The merged event now ends at this token
+                                ids.pollLast();
+                                ids.addLast(id);
+                                coalesced.increment();
+                                return true;
+                            }
+                            // Nothing to merge into: queue beyond capacity rather than lose the token
+                        }
+                        case DISCONNECT -> {
+                            disconnected.increment();
+                            slow = true;
+                            closed = true;
+                            kinds.clear();
+                            data.clear();
+                            ids.clear();
+                        }
+                    }
+                }
+                if (!closed) {
+                    enqueue(Kind.TOKEN, token, id);
+                }
+            }
+            if (slow) {
+                log.warn("Disconnecting slow SSE consumer userId={}", userId);
+                remove(this);
+                emitter.completeWithError(new IOException("slow consumer"));
+                return false;
+            }
+            return true;
+        }
+
+        void offerDone(String id) {
+            synchronized (this) {
+                if (!closed) {
+                    enqueue(Kind.DONE, "done", id);
+                }
+            }
+        }
+
+        void offerSuperseded(String generationId) {
+            synchronized (this) {
+                if (!closed) {
+                    enqueue(Kind.SUPERSEDED, generationId, null);
+                }
+            }
+        }
+
+        void heartbeatIfIdle(long now) {
+            synchronized (this) {
+                if (!closed && kinds.isEmpty() && now - lastWrite >= heartbeatMillis) {
+                    enqueue(Kind.HEARTBEAT, "keepalive", null);
+                }
+            }
+        }
+
+        // Caller holds the monitor
+        private void enqueue(Kind kind, String value, String id) {
+            kinds.addLast(kind);
+            data.addLast(new StringBuilder(value));
+            ids.addLast(id);
+            if (!draining) {
+                draining = true;
+                writers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Kind kind;
+                String value;
+                String id;
+                synchronized (this) {
+                    if (closed || kinds.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                    kind = kinds.pollFirst();
+                    value = data.pollFirst().toString();
+                    id = ids.pollFirst();
+                }
+
+                try {
+                    long sendStart = System.nanoTime();
+                    switch (kind) {
+                        case TOKEN -> emitter.send(SseEmitter.event()
+                                .id(id)
+                                .name("message")
+                                .data(value.replace(" ", "\u00A0"))); // non-breaking space
+                        case SUPERSEDED -> emitter.send(SseEmitter.event()
+                                .name("superseded")
+                                .data(value));
+                        case HEARTBEAT -> emitter.send(SseEmitter.event().comment(value));
+                        case DONE -> {
+                            emitter.send(SseEmitter.event()
+                                    .id(id)
+                                    .name("done")
+                                    .data(value));
+                            sendLatency.record(System.nanoTime() - sendStart, TimeUnit.NANOSECONDS);
+                            emitter.complete();
+                            close();
+                            return;
+                        }
+                    }
+                    sendLatency.record(System.nanoTime() - sendStart, TimeUnit.NANOSECONDS);
+                    synchronized (this) {
+                        lastWrite = System.currentTimeMillis();
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    log.debug("SSE write failed userId={} error={}", userId, e.getMessage());
+                    emitter.completeWithError(e);
+                    close();
+                    return;
+                }
+            }
+        }
+
+        private void close() {
+            synchronized (this) {
+                closed = true;
+                draining = false;
+                kinds.clear();
+                data.clear();
+                ids.clear();
+            }
+            remove(this);
+        }
     }
 }
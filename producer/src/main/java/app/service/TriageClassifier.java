@@ -0,0 +1,17 @@
+package app.service;
+
+import app.model.TriagePriority;
+
+/**
+ * Assigns a priority to an incoming user message before it is queued for a worker.
+ *
+ * Runs on the request thread of every POST /chat, so implementations must be fast and
+ * local (no LLM or network calls). Selected with {@code chat.triage.classifier}:
+ * {@code rules} (default, {@link RuleTriageClassifier}) or {@code none}, which sends
+ * everything to the routine lane. Another implementation can be plugged in as a bean
+ * with its own {@code chat.triage.classifier} value.
+ */
+public interface TriageClassifier {
+
+    TriagePriority classify(String userId, String content);
+}
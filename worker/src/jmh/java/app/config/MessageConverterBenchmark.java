@@ -0,0 +1,90 @@
+package app.config;
+
+import app.model.ProcessMessage;
+import app.model.StreamMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wire round-trips of the payloads exchanged over RabbitMQ: process requests
+ * (producer to worker) and token frames (worker to producer), in each wire format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageConverterBenchmark {
+
+    @Param({"JSON", "BINARY"})
+    public WireMessageConverter.Format format;
+
+    private WireMessageConverter converter;
+    private ProcessMessage processPayload;
+    private StreamMessage framePayload;
+    private Message processMessage;
+    private Message frameMessage;
+
+    @Setup
+    public void setup() {
+        converter = new WireMessageConverter(format);
+
+        processPayload = new ProcessMessage(
+                UUID.randomUUID().toString(),
+                "user-42",
+                "user",
+                "Tengo dolor de cabeza desde hace tres días y algo de fiebre por las noches.",
+                Instant.now(),
+                "chat.stream.queue.producer-1");
+
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            tokens.add(i % 2 == 0 ? "síntoma " : "fiebre ");
+        }
+        framePayload = StreamMessage.frame("user-42", UUID.randomUUID().toString(), tokens);
+
+        // Listeners declare the record type, which JSON uses as the target type
+        processMessage = converter.toMessage(processPayload, new MessageProperties());
+        processMessage.getMessageProperties().setInferredArgumentType(ProcessMessage.class);
+        frameMessage = converter.toMessage(framePayload, new MessageProperties());
+        frameMessage.getMessageProperties().setInferredArgumentType(StreamMessage.class);
+    }
+
+    @Benchmark
+    public Message serializeProcess() {
+        return converter.toMessage(processPayload, new MessageProperties());
+    }
+
+    @Benchmark
+    public Object deserializeProcess() {
+        return converter.fromMessage(processMessage);
+    }
+
+    @Benchmark
+    public Message serializeFrame() {
+        return converter.toMessage(framePayload, new MessageProperties());
+    }
+
+    @Benchmark
+    public Object deserializeFrame() {
+        return converter.fromMessage(frameMessage);
+    }
+}
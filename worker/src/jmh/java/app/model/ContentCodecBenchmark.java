@@ -0,0 +1,79 @@
+package app.model;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of storing a message compressed: encode on write, decode on the first read, and
+ * the size ratio reached on a short user message and a typical assistant reply.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentCodecBenchmark {
+
+    private static final String QUESTION =
+            "Hola, tengo dolor de cabeza desde hace tres días, algo de fiebre por las noches y náuseas. "
+            + "¿Debo ir a urgencias?";
+
+    private static final String REPLY =
+            "Entiendo cómo te sientes. Por lo que describes, tus síntomas podrían estar relacionados con una "
+            + "infección viral, pero es importante vigilar su evolución. ¿Del 1 al 10, qué tan intenso es el dolor? "
+            + "¿Has tomado algún medicamento? Te recomiendo que descanses, te mantengas hidratado y bebas abundantes "
+            + "líquidos. Puedes tomar paracetamol según las indicaciones del envase, si no tienes contraindicaciones. "
+            + "Si los síntomas empeoran, persisten por más de 48 horas o aparecen signos de alarma como dificultad "
+            + "para respirar, confusión o dolor intenso en el pecho, acude de inmediato a urgencias. Esta orientación "
+            + "no reemplaza una evaluación médica profesional.";
+
+    @Param({"question", "reply"})
+    public String message;
+
+    private String content;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        content = message.equals("question") ? QUESTION : REPLY;
+        encoded = ContentCodec.encode(content, 0);
+    }
+
+    @Benchmark
+    public byte[] encode(Sizes sizes) {
+        byte[] out = ContentCodec.encode(content, 0);
+        sizes.rawBytes = content.getBytes(StandardCharsets.UTF_8).length;
+        sizes.storedBytes = out == null ? sizes.rawBytes : out.length;
+        return out;
+    }
+
+    @Benchmark
+    public String decode() {
+        return ContentCodec.decode(encoded);
+    }
+
+    /**
+     * Reported next to the timings: the same sizes on every call, so the ratio is
+     * rawBytes / storedBytes.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        public long rawBytes;
+        public long storedBytes;
+    }
+}
@@ -0,0 +1,125 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * "Last N messages of a user" (the ConversationCache miss path) from each history
+ * backend: the indexed H2 file table and the memory-mapped message log. Both hold the
+ * same {@code users x messagesPerUser} rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryReadBenchmark {
+
+    private static final String RECENT =
+            "SELECT id, user_id, role, content, content_z, created_at FROM chat_message WHERE user_id = ? " +
+            "ORDER BY created_at DESC, id DESC LIMIT ?";
+
+    @Param({"h2", "mmap"})
+    public String backend;
+
+    @Param({"100"})
+    public int limit;
+
+    private final int users = 1000;
+    private final int messagesPerUser = 100;
+
+    private Path dir;
+    private JdbcTemplate jdbc;
+    private MappedMessageLog log;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("history-bench");
+        List<ChatMessage> messages = messages();
+        if (backend.equals("h2")) {
+            // One reused connection, as with the application's pool
+            jdbc = new JdbcTemplate(new SingleConnectionDataSource(
+                    "jdbc:h2:file:" + dir.resolve("db").toAbsolutePath(), "sa", "", true));
+            jdbc.execute("CREATE TABLE chat_message (id VARCHAR(255) PRIMARY KEY, user_id VARCHAR(255) NOT NULL, "
+                    + "role VARCHAR(255) NOT NULL, content CLOB, content_z BLOB, created_at TIMESTAMP(6) WITH TIME ZONE NOT NULL)");
+            jdbc.execute("CREATE INDEX idx_chat_message_user_created ON chat_message (user_id, created_at, id)");
+            jdbc.batchUpdate("INSERT INTO chat_message (id, user_id, role, content, created_at) VALUES (?, ?, ?, ?, ?)",
+                    messages, 1000, (ps, m) -> {
+                ps.setString(1, m.getId());
+                ps.setString(2, m.getUserId());
+                ps.setString(3, m.getRole());
+                ps.setString(4, m.getContent());
+                ps.setObject(5, m.getCreatedAt());
+            });
+        } else {
+            log = MappedMessageLog.open(dir, 64 << 20);
+            messages.forEach(log::append);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (jdbc != null) {
+            jdbc.execute("SHUTDOWN");
+        }
+        if (log != null) {
+            log.close();
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<ChatMessage> recent() {
+        String userId = "user-" + ThreadLocalRandom.current().nextInt(users);
+        if (log != null) {
+            return log.before(userId, null, null, limit);
+        }
+        return jdbc.query(RECENT, (rs, i) -> new ChatMessage(rs.getString(1), rs.getString(2), rs.getString(3),
+                rs.getString(4), rs.getBytes(5), rs.getObject(6, Instant.class)), userId, limit);
+    }
+
+    private List<ChatMessage> messages() {
+        List<ChatMessage> messages = new ArrayList<>(users * messagesPerUser);
+        Instant start = Instant.parse("2024-01-01T00:00:00Z");
+        for (int i = 0; i < messagesPerUser; i++) {
+            for (int u = 0; u < users; u++) {
+                messages.add(new ChatMessage(UUID.randomUUID().toString(), "user-" + u,
+                        i % 2 == 0 ? "user" : "assistant",
+                        "Mensaje de prueba número " + i + " con algo de contenido clínico.",
+                        start.plusMillis((long) i * users + u)));
+            }
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,111 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import app.service.AntiEntropyService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Queue;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batched replication upserts (the ReplicationListener path) against an in-memory H2
+ * with the production schema. {@code insertBatch} applies a batch of new messages;
+ * {@code replayBatch} re-applies an already stored batch, which must touch no rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplicationUpsertBenchmark {
+
+    @Param({"1", "100", "500"})
+    public int batchSize;
+
+    private DriverManagerDataSource dataSource;
+    private JdbcTemplate jdbc;
+    private TransactionTemplate tx;
+    private ChatMessageBatchWriter writer;
+    private List<ChatMessage> stored;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:bench-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        jdbc = new JdbcTemplate(dataSource);
+        jdbc.execute("CREATE TABLE chat_message (id VARCHAR(255) PRIMARY KEY, user_id VARCHAR(255) NOT NULL, "
+                + "role VARCHAR(255) NOT NULL, content CLOB, content_z BLOB, created_at TIMESTAMP(6) WITH TIME ZONE NOT NULL)");
+        jdbc.execute("CREATE INDEX idx_chat_message_user_created ON chat_message (user_id, created_at, id)");
+        jdbc.execute("CREATE TABLE replication_log (seq BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                + "message_id VARCHAR(255) NOT NULL, applied_at TIMESTAMP(6) WITH TIME ZONE NOT NULL)");
+
+        tx = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        writer = new ChatMessageBatchWriter(jdbc, new ReplicationLog(jdbc, 24), new ChatMessageStore() {
+            @Override
+            public List<ChatMessage> recent(String userId, int limit) {
+                return List.of();
+            }
+
+            @Override
+            public void appended(List<ChatMessage> applied) {
+            }
+
+            @Override
+            public void removed(Collection<String> ids) {
+            }
+        }, new AntiEntropyService(jdbc, null, new Queue("bench.antientropy"), new Queue("bench.replication"),
+                new SimpleMeterRegistry(), false, 64, 12, false, 30), false, 128);
+
+        stored = batch();
+        tx.execute(status -> writer.upsertNewer(stored));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        jdbc.execute("SHUTDOWN");
+    }
+
+    @Benchmark
+    public List<ChatMessage> insertBatch() {
+        List<ChatMessage> messages = batch();
+        return tx.execute(status -> writer.upsertNewer(messages));
+    }
+
+    @Benchmark
+    public List<ChatMessage> replayBatch() {
+        return tx.execute(status -> writer.upsertNewer(stored));
+    }
+
+    private List<ChatMessage> batch() {
+        List<ChatMessage> messages = new ArrayList<>(batchSize);
+        Instant now = Instant.now();
+        for (int i = 0; i < batchSize; i++) {
+            messages.add(new ChatMessage(UUID.randomUUID().toString(), "user-" + (i % 50),
+                    i % 2 == 0 ? "user" : "assistant",
+                    "Mensaje de prueba número " + i + " con algo de contenido clínico.", now));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,85 @@
+package app.service;
+
+import app.model.ChatMessage;
+import app.repo.ConversationSummaryRepository;
+import com.openai.models.ChatModel;
+import com.openai.models.chat.completions.ChatCompletionCreateParams;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prompt assembly as done by ProcessListener for every request: budgeted context
+ * from the cached history, the OpenAI request parameters and the response-cache key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContextAssemblyBenchmark {
+
+    @Param({"10", "100"})
+    public int historySize;
+
+    private ContextBuilder contextBuilder;
+    private ResponseCache responseCache;
+    private List<ChatMessage> history;
+    private ContextBuilder.Context context;
+    private final String content = "¿Debo ir a urgencias si la fiebre no baja con acetaminofén?";
+
+    @Setup
+    public void setup() {
+        // No summary stored, summarization disabled: measures assembly only
+        ConversationSummaryRepository summaries = (ConversationSummaryRepository) Proxy.newProxyInstance(
+                ConversationSummaryRepository.class.getClassLoader(),
+                new Class<?>[]{ConversationSummaryRepository.class},
+                (proxy, method, args) -> method.getName().equals("findById") ? Optional.empty() : null);
+        ConversationSummarizer summarizer = new ConversationSummarizer(null, summaries, false, "gpt-4.1-mini", 250);
+        contextBuilder = new ContextBuilder(summaries, summarizer, 3000, 10000);
+        responseCache = new ResponseCache(new SimpleMeterRegistry(), true, 5000, 0, 2, "");
+
+        history = new ArrayList<>();
+        Instant t = Instant.now().minusSeconds(historySize * 60L);
+        for (int i = 0; i < historySize; i++) {
+            String role = i % 2 == 0 ? "user" : "assistant";
+            String text = i % 2 == 0
+                    ? "Me duele la cabeza y tengo fiebre desde ayer, ¿qué puedo hacer?"
+                    : "Entiendo tus síntomas. Mantente hidratado, descansa y vigila la temperatura; "
+                    + "si supera 39 °C o aparecen otros síntomas, acude a un centro médico.";
+            history.add(new ChatMessage(UUID.randomUUID().toString(), "user-42", role, text, t.plusSeconds(i * 60L)));
+        }
+        context = contextBuilder.build("user-42", history, List.of(), content);
+    }
+
+    @Benchmark
+    public ChatCompletionCreateParams assemblePrompt() {
+        ContextBuilder.Context built = contextBuilder.build("user-42", history, List.of(), content);
+        var builder = ChatCompletionCreateParams.builder().model(ChatModel.GPT_4_1);
+        built.applyTo(builder);
+        return builder.build();
+    }
+
+    @Benchmark
+    public String responseCacheKey() {
+        return responseCache.key(context);
+    }
+}
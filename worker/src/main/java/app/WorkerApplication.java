@@ -3,7 +3,9 @@ package app;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
+import org.springframework.scheduling.annotation.EnableScheduling;
 @EnableRabbit
+@EnableScheduling
 @SpringBootApplication
 public class WorkerApplication {
     public static void main(String[] args) {
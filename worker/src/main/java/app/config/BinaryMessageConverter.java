@@ -0,0 +1,333 @@
+package app.config;
+
+import app.model.ProcessMessage;
+import app.model.ReplicationMessage;
+import app.model.StreamMessage;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compact binary codec for the typed chat messages.
+ *
+ * Layout: a one-byte message tag followed by the record's fields in declaration order.
+ * Strings are a varint of (UTF-8 length + 1) then the bytes, 0 meaning null. Ids that
+ * are canonical UUIDs travel as 16 raw bytes. Timestamps are epoch nanoseconds in
+ * 8 bytes. Stream events are a one-byte code. Field names are never written, so a
+ * 32-token frame costs little more than the tokens themselves.
+ *
+ * The layout is fixed; any change needs a new content type.
+ */
+public class BinaryMessageConverter implements MessageConverter {
+
+    public static final String CONTENT_TYPE = "application/x-chat-binary-v1";
+
+    private static final byte PROCESS = 1;
+    private static final byte STREAM = 2;
+    private static final byte REPLICATION = 3;
+
+    private static final byte ID_NULL = 0;
+    private static final byte ID_UUID = 1;
+    private static final byte ID_STRING = 2;
+
+    private static final byte EVENT_OTHER = 0;
+    private static final byte EVENT_FRAME = 1;
+    private static final byte EVENT_TOKEN = 2;
+    private static final byte EVENT_COMPLETE = 3;
+
+    private static final long NO_INSTANT = Long.MIN_VALUE;
+
+    public static boolean supports(Object object) {
+        return object instanceof ProcessMessage
+                || object instanceof StreamMessage
+                || object instanceof ReplicationMessage;
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) {
+        byte[] body = encode(object);
+        messageProperties.setContentType(CONTENT_TYPE);
+        messageProperties.setContentLength(body.length);
+        return new Message(body, messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) {
+        return decode(message.getBody());
+    }
+
+    public static byte[] encode(Object object) {
+        Writer w = new Writer(estimateSize(object));
+        if (object instanceof ProcessMessage m) {
+            w.writeByte(PROCESS);
+            w.writeId(m.id());
+            w.writeString(m.userId());
+            w.writeString(m.role());
+            w.writeString(m.content());
+            w.writeInstant(m.createdAt());
+            w.writeString(m.streamQueueName());
+        } else if (object instanceof StreamMessage m) {
+            w.writeByte(STREAM);
+            w.writeString(m.userId());
+            byte event = eventCode(m.event());
+            w.writeByte(event);
+            if (event == EVENT_OTHER) {
+                w.writeString(m.event());
+            }
+            w.writeId(m.generationId());
+            if (m.tokens() == null) {
+                w.writeVarint(0);
+            } else {
+                w.writeVarint(m.tokens().size() + 1);
+                for (String token : m.tokens()) {
+                    w.writeString(token);
+                }
+            }
+            w.writeString(m.content());
+        } else if (object instanceof ReplicationMessage m) {
+            w.writeByte(REPLICATION);
+            w.writeId(m.id());
+            w.writeString(m.userId());
+            w.writeString(m.role());
+            w.writeString(m.content());
+            w.writeInstant(m.createdAt());
+        } else {
+            throw new MessageConversionException("No binary encoding for " +
+                    (object == null ? "null" : object.getClass().getName()));
+        }
+        return w.toByteArray();
+    }
+
+    public static Object decode(byte[] body) {
+        ByteBuffer in = ByteBuffer.wrap(body);
+        try {
+            byte tag = in.get();
+            switch (tag) {
+                case PROCESS:
+                    return new ProcessMessage(readId(in), readString(in), readString(in), readString(in),
+                            readInstant(in), readString(in));
+                case STREAM: {
+                    String userId = readString(in);
+                    byte code = in.get();
+                    String event = code == EVENT_OTHER ? readString(in) : eventName(code);
+                    String generationId = readId(in);
+                    int count = readVarint(in) - 1;
+                    List<String> tokens = null;
+                    if (count >= 0) {
+                        tokens = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            tokens.add(readString(in));
+                        }
+                    }
+                    return new StreamMessage(userId, event, generationId, tokens, readString(in));
+                }
+                case REPLICATION:
+                    return new ReplicationMessage(readId(in), readString(in), readString(in), readString(in),
+                            readInstant(in));
+                default:
+                    throw new MessageConversionException("Unknown binary message tag " + tag);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new MessageConversionException("Malformed binary message", e);
+        }
+    }
+
+    /**
+     * Rough upper bound for the encoded size, so the buffer rarely has to grow.
+     */
+    private static int estimateSize(Object object) {
+        int size = 64;
+        if (object instanceof StreamMessage m && m.tokens() != null) {
+            for (String token : m.tokens()) {
+                size += 2 + (token != null ? token.length() : 0);
+            }
+        } else if (object instanceof ProcessMessage m && m.content() != null) {
+            size += m.content().length() + 96;
+        } else if (object instanceof ReplicationMessage m && m.content() != null) {
+            size += m.content().length() + 64;
+        }
+        return size;
+    }
+
+    private static byte eventCode(String event) {
+        if (event == null) {
+            return EVENT_OTHER;
+        }
+        return switch (event) {
+            case StreamMessage.FRAME -> EVENT_FRAME;
+            case StreamMessage.TOKEN -> EVENT_TOKEN;
+            case StreamMessage.COMPLETE -> EVENT_COMPLETE;
+            default -> EVENT_OTHER;
+        };
+    }
+
+    private static String eventName(byte code) {
+        return switch (code) {
+            case EVENT_FRAME -> StreamMessage.FRAME;
+            case EVENT_TOKEN -> StreamMessage.TOKEN;
+            case EVENT_COMPLETE -> StreamMessage.COMPLETE;
+            default -> throw new IllegalArgumentException("Unknown stream event code " + code);
+        };
+    }
+
+    private static String readId(ByteBuffer in) {
+        byte kind = in.get();
+        return switch (kind) {
+            case ID_NULL -> null;
+            case ID_UUID -> new UUID(in.getLong(), in.getLong()).toString();
+            case ID_STRING -> readString(in);
+            default -> throw new IllegalArgumentException("Unknown id encoding " + kind);
+        };
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in) - 1;
+        if (length == -1) {
+            return null;
+        }
+        if (length < -1 || length > in.remaining()) {
+            throw new IllegalArgumentException("String length " + length + " exceeds the " + in.remaining() + " bytes left");
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    private static Instant readInstant(ByteBuffer in) {
+        long nanos = in.getLong();
+        return nanos == NO_INSTANT ? null : Instant.ofEpochSecond(0, nanos);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * Growable output buffer.
+     */
+    private static final class Writer {
+
+        private byte[] buf;
+        private int pos;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeString(String s) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            // Fast path for ASCII (most tokens): no intermediate byte[]
+            int n = s.length();
+            int start = pos;
+            writeVarint(n + 1);
+            ensure(n);
+            int i = 0;
+            for (; i < n; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                buf[pos++] = (byte) c;
+            }
+            if (i == n) {
+                return;
+            }
+            pos = start;
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeId(String id) {
+            if (id == null) {
+                writeByte(ID_NULL);
+                return;
+            }
+            UUID uuid = parseCanonicalUuid(id);
+            if (uuid == null) {
+                writeByte(ID_STRING);
+                writeString(id);
+            } else {
+                writeByte(ID_UUID);
+                writeLong(uuid.getMostSignificantBits());
+                writeLong(uuid.getLeastSignificantBits());
+            }
+        }
+
+        void writeInstant(Instant instant) {
+            writeLong(instant == null
+                    ? NO_INSTANT
+                    : Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000L), instant.getNano()));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+            }
+        }
+
+        /**
+         * Only ids that round-trip exactly (lower-case, 36 chars) are packed, so decoding
+         * always returns the original string.
+         */
+        private static UUID parseCanonicalUuid(String s) {
+            if (s.length() != 36) {
+                return null;
+            }
+            try {
+                UUID uuid = UUID.fromString(s);
+                return uuid.toString().equals(s) ? uuid : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
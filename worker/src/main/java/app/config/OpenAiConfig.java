@@ -0,0 +1,31 @@
+package app.config;
+
+import com.openai.client.OpenAIClient;
+import com.openai.client.okhttp.OpenAIOkHttpClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * OpenAI client shared by stream generation and conversation summarization.
+ *
+ * Settings come from the standard OPENAI_* environment variables; {@code openai.base-url}
+ * and {@code openai.api-key} override them, e.g. to point the worker at the local
+ * stand-in server in {@code loadtest/}.
+ */
+@Configuration
+public class OpenAiConfig {
+
+    @Bean(destroyMethod = "close")
+    public OpenAIClient openAIClient(@Value("${openai.base-url:}") String baseUrl,
+                                     @Value("${openai.api-key:}") String apiKey) {
+        OpenAIOkHttpClient.Builder builder = OpenAIOkHttpClient.builder().fromEnv();
+        if (!baseUrl.isBlank()) {
+            builder.baseUrl(baseUrl);
+        }
+        if (!apiKey.isBlank()) {
+            builder.apiKey(apiKey);
+        }
+        return builder.build();
+    }
+}
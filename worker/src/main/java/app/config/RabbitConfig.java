@@ -1,64 +1,311 @@
 package app.config;
 
+import app.model.TriagePriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 @Configuration
 public class RabbitConfig {
 
+    private static final Logger log = LoggerFactory.getLogger(RabbitConfig.class);
+
     public static final String PROCESS_QUEUE = "chat.process.queue";
+    public static final String PROCESS_QUEUE_URGENT = "chat.process.queue.urgent";
+    public static final String PROCESS_QUEUE_HIGH = "chat.process.queue.high";
+    public static final String PROCESS_HASH_EXCHANGE = "chat.process.hash.exchange";
+    public static final String PROCESS_UNROUTED_EXCHANGE = "chat.process.unrouted.exchange";
+    public static final String SHARD_QUEUE_PREFIX = "chat.process.shard";
     public static final String REPL_EXCHANGE = "chat.replication.exchange";
     public static final String REPL_QUEUE_PREFIX = "chat.replication.queue";
+    public static final String REPL_DEAD_EXCHANGE = "chat.replication.dead.exchange";
+    public static final String REPL_DEAD_QUEUE = "chat.replication.dead";
     public static final String STREAM_QUEUE_PREFIX = "chat.stream.queue";
+    public static final String ANTI_ENTROPY_EXCHANGE = "chat.antientropy.exchange";
+    public static final String ANTI_ENTROPY_QUEUE_PREFIX = "chat.antientropy.queue";
+    public static final String CONTROL_EXCHANGE = "chat.control.exchange";
+    public static final String CONTROL_QUEUE_PREFIX = "chat.control.queue";
 
     @Bean
     public Queue processQueue() {
         return new Queue(PROCESS_QUEUE, true);
     }
 
+    /**
+     * Priority lanes next to the routine {@value #PROCESS_QUEUE}; the producer publishes
+     * each message to the lane of its triage priority.
+     */
+    @Bean
+    public Queue urgentProcessQueue() {
+        return new Queue(PROCESS_QUEUE_URGENT, true);
+    }
+
+    @Bean
+    public Queue highProcessQueue() {
+        return new Queue(PROCESS_QUEUE_HIGH, true);
+    }
+
+    /**
+     * Priority of the lane a delivery was consumed from. Shard queues hold every lane, and
+     * sharded messages that fell back to the routine queue keep theirs, so elsewhere the
+     * lane comes from the message priority (absent or 0 on routine messages).
+     */
+    public static TriagePriority laneOf(String queue, Integer priority) {
+        if (PROCESS_QUEUE_URGENT.equals(queue)) {
+            return TriagePriority.URGENT;
+        }
+        if (PROCESS_QUEUE_HIGH.equals(queue)) {
+            return TriagePriority.HIGH;
+        }
+        if (priority == null) {
+            return TriagePriority.ROUTINE;
+        }
+        return priority >= 2 ? TriagePriority.URGENT : priority == 1 ? TriagePriority.HIGH : TriagePriority.ROUTINE;
+    }
+
+    // -------------------------------
+    // Sharded processing (chat.process.routing=sharded): producers publish to a consistent-hash
+    // exchange keyed on the user id, and each worker has its own shard queue on the ring.
+    // The binding that puts the queue on the ring is managed by ShardMembership, so a node
+    // only takes users once it is ready and hands them back when it shuts down.
+    // -------------------------------
+    @Bean
+    @ConditionalOnProperty(name = "chat.process.routing", havingValue = "sharded")
+    public CustomExchange processHashExchange() {
+        // Same arguments as the producer's: unroutable messages fall back to the routine lane
+        return new CustomExchange(PROCESS_HASH_EXCHANGE, "x-consistent-hash", true, false,
+                Map.of("alternate-exchange", PROCESS_UNROUTED_EXCHANGE));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "chat.process.routing", havingValue = "sharded")
+    public FanoutExchange processUnroutedExchange() {
+        return new FanoutExchange(PROCESS_UNROUTED_EXCHANGE, true, false);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "chat.process.routing", havingValue = "sharded")
+    public Binding processUnroutedBinding(Queue processQueue, FanoutExchange processUnroutedExchange) {
+        return BindingBuilder.bind(processQueue).to(processUnroutedExchange);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "chat.process.routing", havingValue = "sharded")
+    public Queue shardQueue(@Value("${chat.node-id}") String nodeId,
+                            @Value("${chat.process.shard.message-ttl-ms:60000}") long messageTtlMs,
+                            @Value("${chat.process.shard.queue-expires-ms:300000}") long expiresMs) {
+        // Stable per-node name: a node restarted quickly picks up its users' backlog. Messages
+        // nobody takes within message-ttl-ms (e.g. the node crashed) are dead-lettered to the
+        // routine lane, where any worker answers them; the queue itself, and with it the node's
+        // place on the ring, goes once unused for expires-ms, always after its messages have.
+        String queueName = shardQueueName(nodeId);
+        long ttl = Math.max(1, messageTtlMs);
+        long expires = Math.max(expiresMs, ttl + 60_000);
+        log.info("Declared durable shard queue {}", queueName);
+        return QueueBuilder.durable(queueName)
+                .ttl((int) Math.min(ttl, Integer.MAX_VALUE))
+                .deadLetterExchange(PROCESS_UNROUTED_EXCHANGE)
+                .expires((int) Math.min(expires, Integer.MAX_VALUE))
+                .maxPriority(2) // lanes, see laneOf
+                .build();
+    }
+
+    public static String shardQueueName(String nodeId) {
+        return SHARD_QUEUE_PREFIX + "." + nodeId.replaceAll("[^a-zA-Z0-9_.-]", "_");
+    }
+
+    /**
+     * Queues the process listener consumes besides the urgent lane: the high and routine
+     * lanes, which still carry messages from producers that route to them, plus this node's
+     * shard queue when sharded.
+     */
+    @Bean
+    public String[] processQueueNames(@Value("${chat.process.routing:shared}") String routing,
+                                      @Value("${chat.node-id}") String nodeId) {
+        if ("sharded".equalsIgnoreCase(routing.trim())) {
+            return new String[] {PROCESS_QUEUE_HIGH, PROCESS_QUEUE, shardQueueName(nodeId)};
+        }
+        return new String[] {PROCESS_QUEUE_HIGH, PROCESS_QUEUE};
+    }
+
     @Bean
     public FanoutExchange replicationExchange() {
         return new FanoutExchange(REPL_EXCHANGE, true, false);
     }
 
     @Bean
-    public Queue replicationQueue() {
-        String hostname = "unknown";
-        try {
-            hostname = InetAddress.getLocalHost().getHostName();
-        } catch (Exception ignored) {}
-        hostname = hostname.replaceAll("[^a-zA-Z0-9_.-]", "_");
-
-        String uniqueQueueName = REPL_QUEUE_PREFIX + "." + hostname + "." + UUID.randomUUID();
-        System.out.println("[Worker RabbitConfig] Declared ephemeral replication queue: " + uniqueQueueName);
-        return new Queue(uniqueQueueName, true, false, true);
+    public Queue replicationQueue(@Value("${chat.node-id}") String nodeId,
+                                  @Value("${chat.replication.queue-expires-ms:86400000}") long expiresMs) {
+        // Stable per-node name: a restarted node resumes from the backlog buffered while it was down
+        String queueName = REPL_QUEUE_PREFIX + ".worker." + nodeId.replaceAll("[^a-zA-Z0-9_.-]", "_");
+        log.info("Declared durable replication queue {}", queueName);
+        return QueueBuilder.durable(queueName)
+                .expires((int) Math.min(expiresMs, Integer.MAX_VALUE)) // removed once a node has been gone this long
+                .deadLetterExchange(REPL_DEAD_EXCHANGE)
+                .build();
     }
 
     @Bean
     public Binding replicationBinding(Queue replicationQueue, FanoutExchange replicationExchange) {
-        System.out.printf("[RabbitConfig] Bound %s → %s%n", replicationQueue.getName(), REPL_EXCHANGE);
+        log.info("Bound {} to {}", replicationQueue.getName(), REPL_EXCHANGE);
         return BindingBuilder.bind(replicationQueue).to(replicationExchange);
     }
 
+    /**
+     * Replication messages that cannot be applied (undecodable, or rejected by the database)
+     * are parked in one durable queue shared by all nodes, for inspection and replay.
+     */
+    @Bean
+    public FanoutExchange replicationDeadExchange() {
+        return new FanoutExchange(REPL_DEAD_EXCHANGE, true, false);
+    }
+
     @Bean
-    public Jackson2JsonMessageConverter jackson2JsonMessageConverter() {
-        return new Jackson2JsonMessageConverter();
+    public Queue replicationDeadQueue() {
+        return new Queue(REPL_DEAD_QUEUE, true);
+    }
+
+    @Bean
+    public Binding replicationDeadBinding(Queue replicationDeadQueue, FanoutExchange replicationDeadExchange) {
+        return BindingBuilder.bind(replicationDeadQueue).to(replicationDeadExchange);
+    }
+
+    /**
+     * Typed messages go out in the format set by {@code chat.wire.format}; incoming
+     * messages are decoded by content type. Use json until every node understands binary.
+     */
+    @Bean
+    public WireMessageConverter wireMessageConverter(@Value("${chat.wire.format:binary}") String format) {
+        return new WireMessageConverter(WireMessageConverter.Format.valueOf(format.trim().toUpperCase(Locale.ROOT)));
     }
 
     @Bean
     public RabbitTemplate rabbitTemplate(ConnectionFactory connectionFactory,
-                                         Jackson2JsonMessageConverter converter) {
+                                         WireMessageConverter converter) {
         RabbitTemplate rt = new RabbitTemplate(connectionFactory);
         rt.setMessageConverter(converter);
+        rt.setBeforePublishPostProcessors(Tracing::propagate);
         return rt;
     }
+
+    // -------------------------------
+    // Anti-entropy control channel: root announcements (fanout) and direct replies
+    // -------------------------------
+    @Bean
+    public FanoutExchange antiEntropyExchange() {
+        return new FanoutExchange(ANTI_ENTROPY_EXCHANGE, true, false);
+    }
+
+    @Bean
+    public Queue antiEntropyQueue(@Value("${chat.node-id}") String nodeId) {
+        String queueName = ANTI_ENTROPY_QUEUE_PREFIX + ".worker." + nodeId.replaceAll("[^a-zA-Z0-9_.-]", "_");
+        return new Queue(queueName, false, false, true);
+    }
+
+    @Bean
+    public Binding antiEntropyBinding(Queue antiEntropyQueue, FanoutExchange antiEntropyExchange) {
+        return BindingBuilder.bind(antiEntropyQueue).to(antiEntropyExchange);
+    }
+
+    // -------------------------------
+    // Control channel: cancels from the producers, fanned out to every worker
+    // -------------------------------
+    @Bean
+    public FanoutExchange controlExchange() {
+        return new FanoutExchange(CONTROL_EXCHANGE, true, false);
+    }
+
+    @Bean
+    public Queue controlQueue(@Value("${chat.node-id}") String nodeId) {
+        String queueName = CONTROL_QUEUE_PREFIX + ".worker." + nodeId.replaceAll("[^a-zA-Z0-9_.-]", "_");
+        return new Queue(queueName, false, false, true);
+    }
+
+    @Bean
+    public Binding controlBinding(Queue controlQueue, FanoutExchange controlExchange) {
+        return BindingBuilder.bind(controlQueue).to(controlExchange);
+    }
+
+    /**
+     * Listener container for the replication queue.
+     *
+     * Deliveries are handed to the listener in batches of up to {@code batch-size}
+     * messages, or whatever arrived within {@code receive-timeout-ms}, and acked
+     * together after the listener (and its transaction) returns.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory replicationListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            ConnectionFactory connectionFactory,
+            @Value("${chat.replication.batch-size:500}") int batchSize,
+            @Value("${chat.replication.receive-timeout-ms:50}") long receiveTimeout) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(receiveTimeout);
+        factory.setPrefetchCount(Math.max(250, batchSize * 2));
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        factory.setDefaultRequeueRejected(false); // to the dead-letter queue; see ReplicationListener
+        return factory;
+    }
+
+    /**
+     * Listener container for the routine and high lanes, and the shard queue when sharded.
+     *
+     * Messages are acked manually once the generated reply has been persisted. Intake is
+     * bounded by one budget for the whole worker: the generation slots plus a small fairness
+     * window, so excess work stays in the broker, where other workers can pick it up from the
+     * shared queues and urgent messages overtake the rest of a shard queue. The prefetch is
+     * global to the channel, i.e. shared by the consumers of every queue of this container.
+     * The urgent lane has its own container and its reserved slots as its share of the budget
+     * (see {@link #urgentProcessListenerContainerFactory}), so an urgent message is never
+     * stuck behind a full routine window.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory processListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            ConnectionFactory connectionFactory,
+            @Value("${chat.worker.max-in-flight:8}") int maxInFlight,
+            @Value("${chat.worker.fairness-window:8}") int fairnessWindow) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setPrefetchCount(Math.max(1, maxInFlight) + Math.max(0, fairnessWindow));
+        factory.setGlobalQos(true);
+        return factory;
+    }
+
+    /**
+     * Listener container for the urgent lane: prefetches up to {@code urgent-slots}
+     * messages, the slots only urgent generations may use.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory urgentProcessListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            ConnectionFactory connectionFactory,
+            @Value("${chat.worker.urgent-slots:2}") int urgentSlots) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setPrefetchCount(Math.max(1, urgentSlots));
+        return factory;
+    }
+
     @Bean
     public Queue streamQueue() {
         String hostname = "unknown";
@@ -69,7 +316,7 @@ public class RabbitConfig {
 
         // Unique queue per producer instance
         String queueName = "chat.stream.queue." + hostname + "." + UUID.randomUUID();
-        System.out.println("[RabbitConfig] Declared ephemeral stream queue: " + queueName);
+        log.info("Declared ephemeral stream queue {}", queueName);
         return new Queue(queueName, true, false, true);
     }
 
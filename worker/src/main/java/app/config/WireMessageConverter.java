@@ -0,0 +1,48 @@
+package app.config;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.ContentTypeDelegatingMessageConverter;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+
+/**
+ * Chooses the wire format by AMQP content type.
+ *
+ * Incoming messages are decoded with the binary codec or JSON according to their content
+ * type, so nodes on either format interoperate. Outgoing typed messages use the binary
+ * codec when {@code chat.wire.format=binary}; everything else (and every message when the
+ * format is {@code json}) is JSON. JSON writes timestamps as ISO-8601 strings, which is
+ * what nodes that read {@code Map} payloads expect.
+ */
+public class WireMessageConverter extends ContentTypeDelegatingMessageConverter {
+
+    public enum Format { JSON, BINARY }
+
+    private final Format format;
+    private final BinaryMessageConverter binary = new BinaryMessageConverter();
+
+    public WireMessageConverter(Format format) {
+        super(jsonConverter());
+        this.format = format;
+        addDelegate(BinaryMessageConverter.CONTENT_TYPE, binary);
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) {
+        if (format == Format.BINARY && BinaryMessageConverter.supports(object)) {
+            return binary.toMessage(object, messageProperties);
+        }
+        return super.toMessage(object, messageProperties);
+    }
+
+    static Jackson2JsonMessageConverter jsonConverter() {
+        ObjectMapper mapper = new ObjectMapper()
+                .findAndRegisterModules()
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        return new Jackson2JsonMessageConverter(mapper);
+    }
+}
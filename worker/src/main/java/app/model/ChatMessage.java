@@ -3,13 +3,21 @@ package app.model;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.Column;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
 import java.time.Instant;
 
 @Entity
-@Table(name = "chat_message")
+@Table(name = "chat_message", indexes = {
+        // History reads filter by user and page by (createdAt, id)
+        @Index(name = "idx_chat_message_user_created", columnList = "userId, createdAt, id")
+})
 public class ChatMessage {
 
+    public static final String ROLE_ASSISTANT = "assistant";
+    public static final String ROLE_ASSISTANT_PARTIAL = "assistant_partial";
+
     @Id
     private String id; // UUID
 
@@ -17,14 +25,27 @@ public class ChatMessage {
     private String userId;
 
     @Column(nullable = false)
-    private String role; // "user" or "assistant"
+    private String role; // "user", "assistant", or "assistant_partial" for a cancelled reply
 
     @Column(columnDefinition = "CLOB")
-    private String content;
+    private String content; // null when stored compressed
+
+    @Column(columnDefinition = "BLOB")
+    private byte[] contentZ; // ContentCodec format, decoded on first getContent()
+
+    @Transient
+    private String decoded;
 
     @Column(nullable = false)
     private Instant createdAt;
 
+    /**
+     * Whether the role is a model reply, complete or cut short.
+     */
+    public static boolean isAssistant(String role) {
+        return ROLE_ASSISTANT.equals(role) || ROLE_ASSISTANT_PARTIAL.equals(role);
+    }
+
     public ChatMessage() {}
 
     public ChatMessage(String id, String userId, String role, String content, Instant createdAt) {
@@ -35,6 +56,14 @@ public class ChatMessage {
         this.createdAt = createdAt;
     }
 
+    /**
+     * Row as stored: {@code content} or {@code contentZ} is set.
+     */
+    public ChatMessage(String id, String userId, String role, String content, byte[] contentZ, Instant createdAt) {
+        this(id, userId, role, content, createdAt);
+        this.contentZ = contentZ;
+    }
+
     // getters & setters
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
@@ -42,8 +71,17 @@ public class ChatMessage {
     public void setUserId(String userId) { this.userId = userId; }
     public String getRole() { return role; }
     public void setRole(String role) { this.role = role; }
-    public String getContent() { return content; }
-    public void setContent(String content) { this.content = content; }
+    public String getContent() {
+        if (content == null && contentZ != null && decoded == null) {
+            decoded = ContentCodec.decode(contentZ);
+        }
+        return content != null ? content : decoded;
+    }
+    public void setContent(String content) {
+        this.content = content;
+        this.contentZ = null;
+        this.decoded = null;
+    }
     public Instant getCreatedAt() { return createdAt; }
     public void setCreatedAt(Instant createdAt) { this.createdAt = createdAt; }
 }
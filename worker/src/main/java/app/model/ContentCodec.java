@@ -0,0 +1,145 @@
+package app.model;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed storage format of {@code chat_message.content_z}.
+ *
+ * Messages are short, so plain deflate gains little on its own; a preset dictionary of
+ * the triage vocabulary ({@code chat-content-dict-v1.txt}) gives it back-references from
+ * the first byte. Layout:
+ * <pre>
+ *   byte format (1) | int UTF-8 length | raw deflate stream
+ * </pre>
+ * The format byte names the dictionary, so a new dictionary gets a new format and old
+ * rows stay readable. Encode and decode times, the compression ratio and the raw and
+ * stored byte counts are published to the global meter registry.
+ */
+public final class ContentCodec {
+
+    public static final byte FORMAT_DEFLATE_DICT_V1 = 1;
+
+    private static final int HEADER = 1 + Integer.BYTES;
+    private static final byte[] DICTIONARY = load("/chat-content-dict-v1.txt");
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private static final Timer ENCODE = Timer.builder("chat.content.encode")
+            .description("Time to compress message content")
+            .register(Metrics.globalRegistry);
+    private static final Timer DECODE = Timer.builder("chat.content.decode")
+            .description("Time to decompress message content")
+            .register(Metrics.globalRegistry);
+    private static final DistributionSummary RATIO = DistributionSummary.builder("chat.content.compression.ratio")
+            .description("UTF-8 size over stored size of compressed messages")
+            .register(Metrics.globalRegistry);
+    private static final Counter RAW_BYTES = Counter.builder("chat.content.bytes")
+            .tag("kind", "raw").baseUnit("bytes")
+            .register(Metrics.globalRegistry);
+    private static final Counter STORED_BYTES = Counter.builder("chat.content.bytes")
+            .tag("kind", "stored").baseUnit("bytes")
+            .register(Metrics.globalRegistry);
+
+    private ContentCodec() {}
+
+    /**
+     * Compresses the content when it is at least {@code minBytes} long in UTF-8.
+     *
+     * @return the encoded bytes, or null when the content should be stored as text
+     *         (null, too short, or not smaller once compressed)
+     */
+    public static byte[] encode(String content, int minBytes) {
+        if (content == null) {
+            return null;
+        }
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        RAW_BYTES.increment(raw.length);
+        if (raw.length < Math.max(minBytes, HEADER + 1)) {
+            STORED_BYTES.increment(raw.length);
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(raw);
+        deflater.finish();
+        // Only worth keeping if it ends up smaller than the text
+        byte[] out = new byte[raw.length];
+        out[0] = FORMAT_DEFLATE_DICT_V1;
+        ByteBuffer.wrap(out, 1, Integer.BYTES).putInt(raw.length);
+        int length = HEADER;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        ENCODE.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        if (!deflater.finished() || length >= raw.length) {
+            STORED_BYTES.increment(raw.length);
+            return null;
+        }
+        STORED_BYTES.increment(length);
+        RATIO.record((double) raw.length / length);
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Content of a row: the text column, or else the decoded {@code content_z}.
+     */
+    public static String decode(String content, byte[] encoded) {
+        return content != null || encoded == null ? content : decode(encoded);
+    }
+
+    public static String decode(byte[] encoded) {
+        if (encoded.length < HEADER || encoded[0] != FORMAT_DEFLATE_DICT_V1) {
+            throw new IllegalArgumentException("Unknown content format " + (encoded.length == 0 ? -1 : encoded[0]));
+        }
+        long start = System.nanoTime();
+        byte[] raw = new byte[ByteBuffer.wrap(encoded, 1, Integer.BYTES).getInt()];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(encoded, HEADER, encoded.length - HEADER);
+        try {
+            int length = 0;
+            while (length < raw.length) {
+                int n = inflater.inflate(raw, length, raw.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalArgumentException("Truncated content: " + length + " of " + raw.length + " bytes");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt content", e);
+        }
+        DECODE.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] load(String resource) {
+        try (InputStream in = ContentCodec.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing compression dictionary " + resource);
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read compression dictionary " + resource, e);
+        }
+    }
+}
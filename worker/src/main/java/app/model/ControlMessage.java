@@ -0,0 +1,22 @@
+package app.model;
+
+/**
+ * Event on the control exchange, from producers to every worker.
+ * {@code cancel} stops the user's running generation {@code generationId} (or whichever
+ * is running when it is null) and keeps what was generated as a partial reply.
+ */
+public record ControlMessage(String action,
+                             String userId,
+                             String generationId,
+                             String reason) {
+
+    public static final String CANCEL = "cancel";
+
+    /** Cancel reasons sent by the producers. */
+    public static final String REASON_CLIENT = "client";
+    public static final String REASON_DISCONNECT = "disconnect";
+
+    public static ControlMessage cancel(String userId, String generationId, String reason) {
+        return new ControlMessage(CANCEL, userId, generationId, reason);
+    }
+}
@@ -0,0 +1,47 @@
+package app.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import java.time.Instant;
+
+/**
+ * Rolling summary of the older turns of a user's conversation.
+ * Every message with createdAt at or before {@code coveredUntil} is folded into {@code summary}.
+ */
+@Entity
+@Table(name = "conversation_summary")
+public class ConversationSummary {
+
+    @Id
+    private String userId;
+
+    @Column(columnDefinition = "CLOB")
+    private String summary;
+
+    @Column(nullable = false)
+    private Instant coveredUntil;
+
+    @Column(nullable = false)
+    private Instant updatedAt;
+
+    public ConversationSummary() {}
+
+    public ConversationSummary(String userId, String summary, Instant coveredUntil, Instant updatedAt) {
+        this.userId = userId;
+        this.summary = summary;
+        this.coveredUntil = coveredUntil;
+        this.updatedAt = updatedAt;
+    }
+
+    // getters & setters
+    public String getUserId() { return userId; }
+    public void setUserId(String userId) { this.userId = userId; }
+    public String getSummary() { return summary; }
+    public void setSummary(String summary) { this.summary = summary; }
+    public Instant getCoveredUntil() { return coveredUntil; }
+    public void setCoveredUntil(Instant coveredUntil) { this.coveredUntil = coveredUntil; }
+    public Instant getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(Instant updatedAt) { this.updatedAt = updatedAt; }
+}
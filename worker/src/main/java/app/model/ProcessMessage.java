@@ -0,0 +1,20 @@
+package app.model;
+
+import java.time.Instant;
+
+/**
+ * Work item on the process queue: a user message the worker should answer,
+ * plus the producer stream queue the reply tokens go to.
+ */
+public record ProcessMessage(String id,
+                             String userId,
+                             String role,
+                             String content,
+                             Instant createdAt,
+                             String streamQueueName) {
+
+    public static ProcessMessage of(ChatMessage msg, String streamQueueName) {
+        return new ProcessMessage(msg.getId(), msg.getUserId(), msg.getRole(), msg.getContent(),
+                msg.getCreatedAt(), streamQueueName);
+    }
+}
@@ -0,0 +1,26 @@
+package app.model;
+
+import java.time.Instant;
+
+/**
+ * A chat message broadcast on the replication exchange (or pushed to one peer by anti-entropy).
+ */
+public record ReplicationMessage(String id,
+                                 String userId,
+                                 String role,
+                                 String content,
+                                 Instant createdAt) {
+
+    public static ReplicationMessage of(ChatMessage msg) {
+        return new ReplicationMessage(msg.getId(), msg.getUserId(), msg.getRole(), msg.getContent(),
+                msg.getCreatedAt());
+    }
+
+    public boolean isComplete() {
+        return id != null && userId != null && content != null && createdAt != null;
+    }
+
+    public ChatMessage toChatMessage() {
+        return new ChatMessage(id, userId, role, content, createdAt);
+    }
+}
@@ -0,0 +1,32 @@
+package app.model;
+
+import java.util.List;
+
+/**
+ * Event on a producer's stream queue: a frame of reply tokens, a single token
+ * (older workers), the end of a generation, or a generation cancelled because a newer
+ * user message superseded it (its tokens should be discarded).
+ */
+public record StreamMessage(String userId,
+                            String event,
+                            String generationId,
+                            List<String> tokens,
+                            String content) {
+
+    public static final String FRAME = "frame";
+    public static final String TOKEN = "token";
+    public static final String COMPLETE = "complete";
+    public static final String SUPERSEDED = "superseded";
+
+    public static StreamMessage frame(String userId, String generationId, List<String> tokens) {
+        return new StreamMessage(userId, FRAME, generationId, tokens, null);
+    }
+
+    public static StreamMessage complete(String userId, String generationId) {
+        return new StreamMessage(userId, COMPLETE, generationId, null, "t");
+    }
+
+    public static StreamMessage superseded(String userId, String generationId) {
+        return new StreamMessage(userId, SUPERSEDED, generationId, null, null);
+    }
+}
@@ -0,0 +1,20 @@
+package app.model;
+
+import java.util.Locale;
+
+/**
+ * Urgency assigned to a user message by the producer's triage classifier.
+ * Each priority has its own process-queue lane; declared from most to least urgent.
+ */
+public enum TriagePriority {
+    URGENT,
+    HIGH,
+    ROUTINE;
+
+    /**
+     * Lower-case name, used as the {@code lane} metric tag.
+     */
+    public String tag() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
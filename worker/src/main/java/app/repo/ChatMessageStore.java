@@ -0,0 +1,32 @@
+package app.repo;
+
+import app.model.ChatMessage;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Read side of the message history, with a choice of storage backend.
+ *
+ * {@code chat_message} stays the system of record (replication, snapshots and
+ * anti-entropy all run against it); a store serves history reads and is kept current
+ * through {@link #appended}, which {@link ChatMessageBatchWriter} calls after every
+ * commit. Selected with {@code chat.store.backend}: {@code jpa} (default) or {@code mmap}.
+ */
+public interface ChatMessageStore {
+
+    /**
+     * The user's newest messages, newest first.
+     */
+    List<ChatMessage> recent(String userId, int limit);
+
+    /**
+     * Rows that were inserted or updated by a committed transaction.
+     */
+    void appended(List<ChatMessage> applied);
+
+    /**
+     * Rows that were deleted from {@code chat_message} by retention.
+     */
+    void removed(Collection<String> ids);
+}
@@ -0,0 +1,47 @@
+package app.repo;
+
+import app.config.Tracing;
+import app.model.ControlMessage;
+import app.service.TurnCoalescer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.stereotype.Component;
+
+/**
+ * Listens to control events from the producers on this worker's control queue.
+ *
+ * Producers do not know which worker runs a user's generation, so every cancel is
+ * fanned out to all workers; only the one running that generation acts on it.
+ */
+@Component
+public class ControlListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ControlListener.class);
+
+    private final TurnCoalescer coalescer;
+
+    public ControlListener(TurnCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    @RabbitListener(queues = "#{controlQueue.name}")
+    public void onControl(ControlMessage payload,
+                          @Header(name = Tracing.AMQP_HEADER, required = false) String traceId) {
+        try (var traceScope = Tracing.scope(traceId)) {
+            if (payload == null || payload.userId() == null) {
+                log.warn("Invalid control payload {}", payload);
+                return;
+            }
+            if (ControlMessage.CANCEL.equals(payload.action())) {
+                boolean aborted = coalescer.abort(payload.userId(), payload.generationId(),
+                        TurnCoalescer.AbortReason.of(payload.reason()));
+                log.debug("Cancel user={} generationId={} reason={} aborted={}",
+                        payload.userId(), payload.generationId(), payload.reason(), aborted);
+            } else {
+                log.warn("Unknown control action={} userId={}", payload.action(), payload.userId());
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package app.repo;
+
+import app.model.ConversationSummary;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface ConversationSummaryRepository extends JpaRepository<ConversationSummary, String> {
+}
@@ -0,0 +1,38 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * History store that reads {@code chat_message} directly ({@code chat.store.backend=jpa}).
+ */
+@Repository
+@ConditionalOnProperty(name = "chat.store.backend", havingValue = "jpa", matchIfMissing = true)
+public class JpaChatMessageStore implements ChatMessageStore {
+
+    private final ChatMessageRepository repo;
+
+    public JpaChatMessageStore(ChatMessageRepository repo) {
+        this.repo = repo;
+    }
+
+    @Override
+    public List<ChatMessage> recent(String userId, int limit) {
+        List<ChatMessage> newest = repo.findTop100ByUserIdOrderByCreatedAtDesc(userId);
+        return newest.size() > limit ? newest.subList(0, limit) : newest;
+    }
+
+    @Override
+    public void appended(List<ChatMessage> applied) {
+        // The rows are already in the table
+    }
+
+    @Override
+    public void removed(Collection<String> ids) {
+        // Already gone from the table
+    }
+}
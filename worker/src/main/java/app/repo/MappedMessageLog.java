@@ -0,0 +1,368 @@
+package app.repo;
+
+import app.model.ChatMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Append-only, segmented message log on memory-mapped files.
+ *
+ * Each segment is a file mapped in full; records are appended at the write position:
+ * <pre>
+ *   int length | long createdAt (epoch nanos) | id | userId | role | content
+ * </pre>
+ * with strings as an int UTF-8 length (-1 for null) followed by the bytes. A zero
+ * length marks the end of a segment. When a record does not fit, a new segment is
+ * started.
+ *
+ * An in-memory index maps every id to its latest record and every user to their
+ * records ordered by (createdAt, id), so a history read decodes straight from the
+ * mapping with no file I/O. Appending an id that already exists (a replication update)
+ * supersedes the old record; {@link #compact} copies the live records out of segments
+ * that are mostly superseded or removed and deletes them. The index is rebuilt by
+ * scanning the segments on {@link #open}.
+ *
+ * Not thread-safe; callers synchronize.
+ */
+final class MappedMessageLog implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER = Integer.BYTES + Long.BYTES;
+
+    private final Path dir;
+    private final int segmentBytes;
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, Location> byId = new HashMap<>();
+    private final Map<String, NavigableMap<Key, Location>> byUser = new HashMap<>();
+    private Segment active;
+
+    private MappedMessageLog(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Maps the existing segments of {@code dir} and indexes their records.
+     */
+    static MappedMessageLog open(Path dir, int segmentBytes) throws IOException {
+        Files.createDirectories(dir);
+        MappedMessageLog log = new MappedMessageLog(dir, Math.max(4096, segmentBytes));
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> p.getFileName().toString().startsWith(SEGMENT_PREFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = log.map(number, (int) Files.size(file));
+            log.segments.put(number, segment);
+            log.scan(segment);
+        }
+        log.active = log.segments.isEmpty() ? log.roll(0) : log.segments.lastEntry().getValue();
+        return log;
+    }
+
+    /**
+     * Appends a message, superseding any earlier record with the same id.
+     */
+    void append(ChatMessage msg) {
+        byte[] id = utf8(msg.getId());
+        byte[] userId = utf8(msg.getUserId());
+        byte[] role = utf8(msg.getRole());
+        byte[] content = utf8(msg.getContent());
+        int length = Long.BYTES + 4 * Integer.BYTES + len(id) + len(userId) + len(role) + len(content);
+
+        Segment segment = reserve(Integer.BYTES + length);
+        ByteBuffer buf = segment.buffer;
+        int offset = segment.writePos;
+        buf.putLong(offset + Integer.BYTES, nanos(msg.getCreatedAt()));
+        int pos = putString(buf, offset + HEADER, id);
+        pos = putString(buf, pos, userId);
+        pos = putString(buf, pos, role);
+        pos = putString(buf, pos, content);
+        // Length last: a torn write leaves the end-of-segment marker in place
+        buf.putInt(offset, length);
+        segment.writePos = pos;
+
+        index(segment, offset, Integer.BYTES + length);
+    }
+
+    /**
+     * Newest records of the user strictly before the key (or from the newest when null).
+     */
+    List<ChatMessage> before(String userId, Instant createdAt, String id, int limit) {
+        NavigableMap<Key, Location> records = byUser.get(userId);
+        if (records == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        NavigableMap<Key, Location> range = createdAt == null
+                ? records.descendingMap()
+                : records.headMap(new Key(nanos(createdAt), id), false).descendingMap();
+        List<ChatMessage> out = new ArrayList<>(Math.min(limit, range.size()));
+        for (Location loc : range.values()) {
+            out.add(read(loc));
+            if (out.size() == limit) {
+                break;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Drops a record from the index; its bytes are reclaimed by {@link #compact}.
+     *
+     * @return whether the id was present
+     */
+    boolean remove(String id) {
+        Location loc = byId.remove(id);
+        if (loc == null) {
+            return false;
+        }
+        unindex(loc);
+        return true;
+    }
+
+    int size() {
+        return byId.size();
+    }
+
+    /**
+     * Latest createdAt across all records, or null when the log is empty.
+     */
+    Instant newest() {
+        long max = Long.MIN_VALUE;
+        for (NavigableMap<Key, Location> records : byUser.values()) {
+            max = Math.max(max, records.lastKey().createdAt());
+        }
+        return max == Long.MIN_VALUE ? null : Instant.ofEpochSecond(0, max);
+    }
+
+    /**
+     * Rewrites the live records of sealed segments whose live fraction is below
+     * {@code threshold} to the end of the log and deletes those segments.
+     *
+     * @return number of segments removed
+     */
+    int compact(double threshold) throws IOException {
+        List<Segment> victims = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.writePos > 0 && segment.liveBytes < threshold * segment.writePos) {
+                victims.add(segment);
+            }
+        }
+        for (Segment victim : victims) {
+            List<Location> live = new ArrayList<>();
+            for (Location loc : byId.values()) {
+                if (loc.segment() == victim) {
+                    live.add(loc);
+                }
+            }
+            live.sort((a, b) -> Integer.compare(a.offset(), b.offset()));
+            for (Location loc : live) {
+                // Raw copy; the record bytes are position-independent
+                Segment target = reserve(loc.length());
+                target.buffer.put(target.writePos, victim.buffer, loc.offset(), loc.length());
+                int offset = target.writePos;
+                target.writePos += loc.length();
+                index(target, offset, loc.length());
+            }
+            segments.remove(victim.number);
+            victim.channel.close();
+            Files.deleteIfExists(victim.path);
+        }
+        return victims.size();
+    }
+
+    /**
+     * Deletes every segment and clears the index.
+     */
+    void clear() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+        segments.clear();
+        byId.clear();
+        byUser.clear();
+        active = roll(0);
+    }
+
+    void force() {
+        active.buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+
+    private void scan(Segment segment) {
+        ByteBuffer buf = segment.buffer;
+        int pos = 0;
+        while (pos + HEADER <= buf.capacity()) {
+            int length = buf.getInt(pos);
+            if (length <= 0 || pos + Integer.BYTES + length > buf.capacity()) {
+                break;
+            }
+            index(segment, pos, Integer.BYTES + length);
+            pos += Integer.BYTES + length;
+        }
+        segment.writePos = pos;
+    }
+
+    private void index(Segment segment, int offset, int length) {
+        ByteBuffer buf = segment.buffer;
+        long createdAt = buf.getLong(offset + Integer.BYTES);
+        int pos = offset + HEADER;
+        String id = getString(buf, pos);
+        pos += Integer.BYTES + Math.max(0, buf.getInt(pos));
+        String userId = getString(buf, pos);
+
+        Location previous = byId.get(id);
+        if (previous != null) {
+            unindex(previous);
+        }
+        Key key = new Key(createdAt, id);
+        Location loc = new Location(userId, key, segment, offset, length);
+        byId.put(id, loc);
+        byUser.computeIfAbsent(userId, u -> new TreeMap<>()).put(key, loc);
+        segment.liveBytes += length;
+    }
+
+    private void unindex(Location loc) {
+        loc.segment().liveBytes -= loc.length();
+        NavigableMap<Key, Location> records = byUser.get(loc.userId());
+        records.remove(loc.key());
+        if (records.isEmpty()) {
+            byUser.remove(loc.userId());
+        }
+    }
+
+    private ChatMessage read(Location loc) {
+        ByteBuffer buf = loc.segment().buffer;
+        int pos = loc.offset() + HEADER;
+        String id = getString(buf, pos);
+        pos += Integer.BYTES + Math.max(0, buf.getInt(pos));
+        String userId = getString(buf, pos);
+        pos += Integer.BYTES + Math.max(0, buf.getInt(pos));
+        String role = getString(buf, pos);
+        pos += Integer.BYTES + Math.max(0, buf.getInt(pos));
+        String content = getString(buf, pos);
+        return new ChatMessage(id, userId, role, content, Instant.ofEpochSecond(0, loc.key().createdAt()));
+    }
+
+    private Segment reserve(int bytes) {
+        if (active.writePos + bytes + Integer.BYTES > active.buffer.capacity()) {
+            active.buffer.force();
+            active = roll(active.number + 1, bytes + Integer.BYTES);
+        }
+        return active;
+    }
+
+    private Segment roll(int number) {
+        return roll(number, 0);
+    }
+
+    private Segment roll(int number, int minBytes) {
+        try {
+            Segment segment = map(number, Math.max(segmentBytes, minBytes));
+            segments.put(number, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create log segment " + number + " in " + dir, e);
+        }
+    }
+
+    private Segment map(int number, int size) throws IOException {
+        Path path = dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(number, path, channel, buffer);
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int len(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static int putString(ByteBuffer buf, int pos, byte[] bytes) {
+        if (bytes == null) {
+            buf.putInt(pos, -1);
+            return pos + Integer.BYTES;
+        }
+        buf.putInt(pos, bytes.length);
+        buf.put(pos + Integer.BYTES, bytes);
+        return pos + Integer.BYTES + bytes.length;
+    }
+
+    private static String getString(ByteBuffer buf, int pos) {
+        int length = buf.getInt(pos);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(pos + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long nanos(Instant instant) {
+        return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000L), instant.getNano());
+    }
+
+    /**
+     * Ordering of a user's records: by createdAt, then id, like the history queries.
+     */
+    private record Key(long createdAt, String id) implements Comparable<Key> {
+        @Override
+        public int compareTo(Key o) {
+            int c = Long.compare(createdAt, o.createdAt);
+            return c != 0 ? c : id.compareTo(o.id);
+        }
+    }
+
+    private record Location(String userId, Key key, Segment segment, int offset, int length) {}
+
+    private static final class Segment {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePos;
+        long liveBytes;
+
+        Segment(int number, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
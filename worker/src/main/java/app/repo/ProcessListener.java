@@ -1,137 +1,479 @@
 package app.repo;
 
 import app.config.RabbitConfig;
+import app.config.Tracing;
 import app.model.ChatMessage;
+import app.model.ProcessMessage;
+import app.model.ReplicationMessage;
+import app.model.TriagePriority;
+import app.service.ContextBuilder;
+import app.service.ConversationCache;
+import app.service.ResponseCache;
+import app.service.TokenFrameBatcher;
+import app.service.TurnCoalescer;
+import com.rabbitmq.client.Channel;
 import com.openai.client.OpenAIClient;
-import com.openai.client.okhttp.OpenAIOkHttpClient;
 import com.openai.models.chat.completions.ChatCompletionChunk;
 import com.openai.models.chat.completions.ChatCompletionCreateParams;
 import com.openai.core.http.AsyncStreamResponse;
 import com.openai.models.ChatModel;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.amqp.support.AmqpMessageHeaderAccessor;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class ProcessListener {
 
-    private final ChatMessageRepository repo;
+    private static final Logger log = LoggerFactory.getLogger(ProcessListener.class);
+
+    private final WriteBehindPersister persister;
     private final RabbitTemplate rabbitTemplate;
+    private final TokenFrameBatcher frameBatcher;
+    private final ConversationCache conversationCache;
+    private final ContextBuilder contextBuilder;
+    private final TurnCoalescer coalescer;
+    private final ResponseCache responseCache;
     private final OpenAIClient client;
 
-    public ProcessListener(ChatMessageRepository repo, RabbitTemplate rabbitTemplate) {
-        this.repo = repo;
+    private final Map<TriagePriority, Timer> queueWait = new EnumMap<>(TriagePriority.class);
+    private final Map<TriagePriority, GenerationMeters> llmMeters = new EnumMap<>(TriagePriority.class);
+    private final Map<TriagePriority, GenerationMeters> cacheMeters = new EnumMap<>(TriagePriority.class);
+
+    public ProcessListener(WriteBehindPersister persister, RabbitTemplate rabbitTemplate,
+                           TokenFrameBatcher frameBatcher, ConversationCache conversationCache,
+                           ContextBuilder contextBuilder, TurnCoalescer coalescer,
+                           ResponseCache responseCache, OpenAIClient client, MeterRegistry registry) {
+        this.persister = persister;
         this.rabbitTemplate = rabbitTemplate;
-        this.client = OpenAIOkHttpClient.fromEnv();
+        this.frameBatcher = frameBatcher;
+        this.conversationCache = conversationCache;
+        this.contextBuilder = contextBuilder;
+        this.coalescer = coalescer;
+        this.responseCache = responseCache;
+        this.client = client;
+
+        for (TriagePriority lane : TriagePriority.values()) {
+            queueWait.put(lane, Timer.builder("chat.generation.queue_wait")
+                    .description("Time from the user message being accepted to its generation starting")
+                    .tag("lane", lane.tag())
+                    .publishPercentileHistogram()
+                    .register(registry));
+            llmMeters.put(lane, new GenerationMeters(registry, "llm", lane));
+            cacheMeters.put(lane, new GenerationMeters(registry, "cache", lane));
+        }
     }
 
-    @RabbitListener(queues = RabbitConfig.PROCESS_QUEUE)
-    public void onProcess(Map<String, Object> payload) {
-        try {
-            String userId = (String) payload.get("userId");
-            String content = (String) payload.get("content");
-            String streamQueueName = (String) payload.get("streamQueueName"); 
+    /**
+     * Receives a user message from the urgent lane, which has a container of its own, or
+     * from the other lanes and this node's shard queue (see {@code RabbitConfig#processQueueNames}),
+     * and hands it to the coalescer, which merges it with the user's other recent messages into one turn.
+     * The delivery is acked only after the reply has been persisted (manual ack mode).
+     */
+    @RabbitListener(id = "urgentProcessListener",
+            queues = RabbitConfig.PROCESS_QUEUE_URGENT,
+            containerFactory = "urgentProcessListenerContainerFactory",
+            autoStartup = "false") // started by ReplicationBootstrap
+    @RabbitListener(id = "processListener",
+            queues = "#{@processQueueNames}",
+            containerFactory = "processListenerContainerFactory",
+            autoStartup = "false")
+    public void onProcess(ProcessMessage payload, Channel channel,
+                          @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                          @Header(name = AmqpHeaders.REDELIVERED, required = false) Boolean redelivered,
+                          @Header(name = AmqpHeaders.CONSUMER_QUEUE, required = false) String queue,
+                          @Header(name = AmqpMessageHeaderAccessor.PRIORITY, required = false) Integer priority,
+                          @Header(name = Tracing.AMQP_HEADER, required = false) String traceId) {
+        String userId = payload.userId();
 
-            if (userId == null || content == null) {
-                System.err.println("⚠️ Invalid payload: " + payload);
-                return;
+        if (userId == null || payload.content() == null) {
+            log.warn("Invalid payload: {}", payload);
+            ack(channel, deliveryTag);
+            return;
+        }
+
+        Delivery delivery = new Delivery(channel, deliveryTag, Boolean.TRUE.equals(redelivered));
+        coalescer.offer(userId, new TurnCoalescer.Part(payload, RabbitConfig.laneOf(queue, priority), traceId, delivery),
+                this::startTurn);
+    }
+
+    /**
+     * Starts the generation for a scheduled turn, traced as its latest message.
+     */
+    private void startTurn(TurnCoalescer.Turn turn, List<TurnCoalescer.Part> parts, Runnable done) {
+        Instant now = Instant.now();
+        TriagePriority lane = TriagePriority.ROUTINE;
+        for (int i = 0; i < parts.size(); i++) {
+            TurnCoalescer.Part part = parts.get(i);
+            if (part.lane().compareTo(lane) < 0) {
+                lane = part.lane();
+            }
+            Instant acceptedAt = part.message().createdAt();
+            if (i >= turn.restarted() && acceptedAt != null) {
+                queueWait.get(part.lane()).record(Duration.between(acceptedAt, now));
             }
+        }
+        String traceId = parts.get(parts.size() - 1).traceId();
+        try (MDC.MDCCloseable scope = Tracing.scope(traceId)) {
+            generate(turn, parts, lane, traceId, done);
+        }
+    }
+
+    /**
+     * Streams one reply from the LLM to all messages of the turn. {@code done} releases
+     * the scheduler slot once the deliveries have been acked (after persisting) or
+     * rejected, or once the stream has been superseded by a newer turn or aborted.
+     */
+    private void generate(TurnCoalescer.Turn turn, List<TurnCoalescer.Part> parts, TriagePriority lane,
+                          String traceId, Runnable done) {
+        long startedNanos = System.nanoTime();
+        GenerationMeters llmMeters = this.llmMeters.get(lane);
+        GenerationMeters cacheMeters = this.cacheMeters.get(lane);
+        String userId = turn.userId();
+        // Replies go to the producer that accepted the latest message
+        String streamQueueName = parts.get(parts.size() - 1).message().streamQueueName();
+        try {
+            // Build role-separated, token-budgeted context from the cached history;
+            // coalesced messages are sent as one user turn
+            List<ChatMessage> history = conversationCache.history(userId);
+            Set<String> messageIds = new HashSet<>();
+            StringJoiner content = new StringJoiner("\n\n");
+            for (TurnCoalescer.Part part : parts) {
+                messageIds.add(part.message().id());
+                content.add(part.message().content());
+            }
+            ContextBuilder.Context context = contextBuilder.build(userId, history, messageIds, content.toString());
 
-            // Build conversation context
-            List<ChatMessage> history = repo.findTop100ByUserIdOrderByCreatedAtDesc(userId);
-            Collections.reverse(history);
+            String generationId = UUID.randomUUID().toString();
+            TokenFrameBatcher.TokenStream frames = frameBatcher.open(userId, streamQueueName, generationId, traceId);
 
-            StringBuilder conversation = new StringBuilder();
-            for (ChatMessage msg : history) {
-                conversation.append(msg.getRole()).append(": ").append(msg.getContent()).append("\n");
+            // Repeated prompt: stream the cached reply through the same frame path
+            String cacheKey = responseCache.isEnabled() ? responseCache.key(context) : null;
+            String cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+            if (cached != null) {
+                if (!turn.claim()) {
+                    done.run(); // superseded before it started
+                    return;
+                }
+                log.debug("Serving cached reply user={} lane={}", userId, lane.tag());
+                try {
+                    List<String> tokens = ResponseCache.tokens(cached);
+                    tokens.forEach(frames::add);
+                    cacheMeters.firstToken(startedNanos);
+                    CompletableFuture<Void> saved = saveReply(userId, cached, frames);
+                    cacheMeters.completed(startedNanos, tokens.size());
+                    ackWhenSaved(saved, parts, userId);
+                } catch (Exception e) {
+                    frames.flush();
+                    log.error("Failed to persist cached reply user={}", userId, e);
+                    reject(parts);
+                } finally {
+                    done.run();
+                }
+                return;
             }
-            conversation.append("user: ").append(content);
 
             // OpenAI streaming parameters
-            var params = ChatCompletionCreateParams.builder()
-                    .addUserMessage(conversation.toString())
-                    .model(ChatModel.GPT_4_1)
-                    .build();
-
-            StringBuilder fullReply = new StringBuilder();
-
-            client.async().chat().completions().createStreaming(params)
-                    .subscribe(new AsyncStreamResponse.Handler<ChatCompletionChunk>() {
-                        @Override
-                        public void onNext(ChatCompletionChunk chunk) {
-                            String token = chunk.choices().get(0).delta().content().orElse("");
-                            if (!token.isEmpty()) {
-                                System.out.print(token);
-                                fullReply.append(token);
-
-                                // 🔹 Send token to producer via user-specific queue
-                                rabbitTemplate.convertAndSend(
-                                // Send directly to the producer's ephemeral stream queue
-                                streamQueueName,  // the producer queue name passed in the payload
-                                Map.of(
-                                    "userId", userId,
-                                    "event", "token",
-                                    "content", token
-                                )
-                            );
-                            }
-                        }
-
-                        @Override
-                        public void onComplete(Optional<Throwable> error) {
-                            if (error.isPresent()) {
-                                System.err.println("\n❌ Stream error!");
-                                error.get().printStackTrace();
-                            } else {
-                                System.out.println("\n✅ Stream completed!");
-
-                                // Save final assistant message to DB
-                                ChatMessage assistantMsg = new ChatMessage();
-                                assistantMsg.setUserId(userId);
-                                assistantMsg.setRole("assistant");
-                                assistantMsg.setContent(fullReply.toString());
-                                assistantMsg.setCreatedAt(Instant.now());
-                                repo.save(assistantMsg);
-                                // Also replicate to database exchange
-                                rabbitTemplate.convertAndSend(
-                                        RabbitConfig.REPL_EXCHANGE,
-                                        "",
-                                        Map.of(
-                                                "id", assistantMsg.getId(),
-                                                "userId", assistantMsg.getUserId(),
-                                                "role", assistantMsg.getRole(),
-                                                "content", assistantMsg.getContent(),
-                                                "createdAt", assistantMsg.getCreatedAt().toString()
-                                        )
-                                );
-                                // Notify producer that stream is complete
-                                rabbitTemplate.convertAndSend(streamQueueName, 
-                                Map.of(
-                                        "userId", userId,
-                                        "event", "complete",
-                                        "content", "t"
-                                ));
-
-                                
-                                
-                            }
-                        }
-                    })
-                    .onCompleteFuture()
-                    .whenComplete((unused, error) -> {
-                        if (error != null) {
-                            System.err.println("⚠️ Stream future completed with error!");
-                            error.printStackTrace();
-                        } else {
-                            System.out.println("🔚 Stream fully completed!"+streamQueueName);
-                        }
-                    });
+            var builder = ChatCompletionCreateParams.builder()
+                    .model(ChatModel.GPT_4_1);
+            context.applyTo(builder);
+            var params = builder.build();
+
+            AsyncStreamResponse<ChatCompletionChunk> stream = client.async().chat().completions().createStreaming(params);
+            StreamingReply reply = new StreamingReply(turn, parts, frames, stream, cacheKey, traceId,
+                    llmMeters, startedNanos, done);
+            // A newer message or a cancel from the producer stops the stream early
+            if (!turn.onCancel(generationId, reply)) {
+                stream.close();
+                done.run();
+                return;
+            }
+            stream.subscribe(reply);
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Generation failed to start user={}", userId, e);
+            if (turn.claim()) {
+                reject(parts);
+            }
+            done.run();
+        }
+    }
+
+    /**
+     * Queues the assistant reply for the next group commit, replicates it and completes
+     * the client's stream.
+     *
+     * @return completed once the reply has been committed locally
+     */
+    private CompletableFuture<Void> saveReply(String userId, String reply, TokenFrameBatcher.TokenStream frames) {
+        return saveReply(userId, reply, ChatMessage.ROLE_ASSISTANT, frames);
+    }
+
+    private CompletableFuture<Void> saveReply(String userId, String reply, String role,
+                                              TokenFrameBatcher.TokenStream frames) {
+        ChatMessage assistantMsg = new ChatMessage();
+        assistantMsg.setId(UUID.randomUUID().toString());
+        assistantMsg.setUserId(userId);
+        assistantMsg.setRole(role);
+        assistantMsg.setContent(reply);
+        assistantMsg.setCreatedAt(Instant.now());
+        conversationCache.append(assistantMsg);
+        // Replicate to database exchange (this worker's own durable replication queue included)
+        rabbitTemplate.convertAndSend(RabbitConfig.REPL_EXCHANGE, "", ReplicationMessage.of(assistantMsg));
+        // Save final assistant message to DB in the next group commit
+        CompletableFuture<Void> saved = persister.submit(assistantMsg);
+        // Flush the last frame and notify producer that stream is complete
+        frames.complete();
+        return saved;
+    }
+
+    /**
+     * One LLM stream answering a turn.
+     *
+     * Ends in one of three ways: the stream completes (the reply is persisted, or the
+     * messages rejected on error); a newer turn supersedes it (the stream is closed and the
+     * client told to drop it, the messages move on); or it is aborted because the client
+     * went away (the stream is closed and what arrived so far is persisted as a partial
+     * reply). Its scheduler slot is released as soon as the stream is closed.
+     */
+    private final class StreamingReply implements AsyncStreamResponse.Handler<ChatCompletionChunk>,
+            TurnCoalescer.Cancellation {
+
+        private final TurnCoalescer.Turn turn;
+        private final List<TurnCoalescer.Part> parts;
+        private final TokenFrameBatcher.TokenStream frames;
+        private final AsyncStreamResponse<ChatCompletionChunk> stream;
+        private final String cacheKey;
+        private final String traceId;
+        private final GenerationMeters meters;
+        private final long startedNanos;
+        private final long startedAt = System.currentTimeMillis();
+        private final Runnable done;
+
+        // Appended by the stream, read when aborted from another thread
+        private final StringBuilder fullReply = new StringBuilder();
+        private int tokenCount;
+
+        StreamingReply(TurnCoalescer.Turn turn, List<TurnCoalescer.Part> parts, TokenFrameBatcher.TokenStream frames,
+                       AsyncStreamResponse<ChatCompletionChunk> stream, String cacheKey, String traceId,
+                       GenerationMeters meters, long startedNanos, Runnable done) {
+            this.turn = turn;
+            this.parts = parts;
+            this.frames = frames;
+            this.stream = stream;
+            this.cacheKey = cacheKey;
+            this.traceId = traceId;
+            this.meters = meters;
+            this.startedNanos = startedNanos;
+            this.done = done;
+        }
+
+        @Override
+        public void onNext(ChatCompletionChunk chunk) {
+            String token = chunk.choices().get(0).delta().content().orElse("");
+            if (!token.isEmpty()) {
+                synchronized (this) {
+                    if (tokenCount++ == 0) {
+                        meters.firstToken(startedNanos);
+                    }
+                    fullReply.append(token);
+                }
+
+                // 🔹 Buffer token; frames are flushed to the producer's stream queue
+                frames.add(token);
+            }
+        }
+
+        @Override
+        public void onComplete(Optional<Throwable> error) {
+            try (MDC.MDCCloseable scope = Tracing.scope(traceId)) {
+                finish(error);
+            }
+        }
+
+        @Override
+        public void supersede() {
+            stream.close();
+            frames.supersede();
+            done.run();
+        }
+
+        @Override
+        public void abort() {
+            try (MDC.MDCCloseable scope = Tracing.scope(traceId)) {
+                stream.close();
+                String partial;
+                int tokens;
+                synchronized (this) {
+                    partial = fullReply.toString();
+                    tokens = tokenCount;
+                }
+                String userId = turn.userId();
+                log.debug("Stream aborted user={} tokens={}", userId, tokens);
+                try {
+                    if (partial.isEmpty()) {
+                        frames.complete();
+                        parts.forEach(part -> part.delivery().ack());
+                    } else {
+                        ackWhenSaved(saveReply(userId, partial, ChatMessage.ROLE_ASSISTANT_PARTIAL, frames), parts, userId);
+                    }
+                } catch (Exception e) {
+                    log.error("Failed to persist partial reply user={}", userId, e);
+                    reject(parts);
+                } finally {
+                    done.run();
+                }
+            }
+        }
+
+        private void finish(Optional<Throwable> error) {
+            String userId = turn.userId();
+            if (!turn.claim()) {
+                // Superseded or aborted: the messages are settled elsewhere
+                log.debug("Stream ended after being stopped user={}", userId);
+                done.run();
+                return;
+            }
+
+            String reply;
+            int tokens;
+            synchronized (this) {
+                reply = fullReply.toString();
+                tokens = tokenCount;
+            }
+
+            if (error.isPresent()) {
+                frames.flush();
+                log.error("Stream failed user={} tokens={}", userId, tokens, error.get());
+                reject(parts);
+                done.run();
+                return;
+            }
+
+            try {
+                CompletableFuture<Void> saved = saveReply(userId, reply, frames);
+                meters.completed(startedNanos, tokens);
+                log.debug("Stream completed user={} messages={} tokens={}", userId, parts.size(), tokens);
+                if (cacheKey != null) {
+                    responseCache.put(cacheKey, reply, System.currentTimeMillis() - startedAt);
+                }
+
+                ackWhenSaved(saved, parts, userId);
+            } catch (Exception e) {
+                log.error("Failed to persist reply user={}", userId, e);
+                reject(parts);
+            } finally {
+                done.run();
+            }
+        }
+    }
+
+    /**
+     * The work items leave the queue only once their reply is persisted. The generation
+     * slot is released before that, since the commit no longer involves the LLM.
+     */
+    private static void ackWhenSaved(CompletableFuture<Void> saved, List<TurnCoalescer.Part> parts, String userId) {
+        saved.whenComplete((unused, error) -> {
+            if (error == null) {
+                parts.forEach(part -> part.delivery().ack());
+            } else {
+                log.error("Failed to persist reply user={}", userId, error);
+                reject(parts);
+            }
+        });
+    }
+
+    private static void reject(List<TurnCoalescer.Part> parts) {
+        parts.forEach(part -> part.delivery().reject());
+    }
+
+    private static void ack(Channel channel, long deliveryTag) {
+        try {
+            synchronized (channel) {
+                channel.basicAck(deliveryTag, false);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to ack delivery {}: {}", deliveryTag, e.getMessage());
+        }
+    }
+
+    /**
+     * A process-queue delivery awaiting acknowledgement.
+     * Failed work is requeued once; a second failure drops it to avoid poison-message loops.
+     */
+    private record Delivery(Channel channel, long deliveryTag, boolean redelivered)
+            implements TurnCoalescer.Acknowledgement {
+
+        @Override
+        public void ack() {
+            ProcessListener.ack(channel, deliveryTag);
+        }
+
+        @Override
+        public void reject() {
+            try {
+                synchronized (channel) {
+                    channel.basicNack(deliveryTag, false, !redelivered);
+                }
+            } catch (IOException e) {
+                log.warn("Failed to nack delivery {}: {}", deliveryTag, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Latency and size of generated replies, tagged by where the reply came from and
+     * the priority lane of the message.
+     */
+    private static final class GenerationMeters {
+
+        private final Timer ttft;
+        private final Timer duration;
+        private final DistributionSummary tokens;
+
+        GenerationMeters(MeterRegistry registry, String source, TriagePriority lane) {
+            this.ttft = Timer.builder("chat.generation.ttft")
+                    .description("Time from generation start to the first token")
+                    .tag("source", source)
+                    .tag("lane", lane.tag())
+                    .publishPercentileHistogram()
+                    .register(registry);
+            this.duration = Timer.builder("chat.generation.duration")
+                    .description("Time from generation start to the reply being persisted")
+                    .tag("source", source)
+                    .tag("lane", lane.tag())
+                    .publishPercentileHistogram()
+                    .register(registry);
+            this.tokens = DistributionSummary.builder("chat.generation.tokens")
+                    .description("Tokens streamed per reply")
+                    .tag("source", source)
+                    .tag("lane", lane.tag())
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+
+        void firstToken(long startedNanos) {
+            ttft.record(System.nanoTime() - startedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void completed(long startedNanos, int tokenCount) {
+            duration.record(System.nanoTime() - startedNanos, TimeUnit.NANOSECONDS);
+            tokens.record(tokenCount);
         }
     }
 }
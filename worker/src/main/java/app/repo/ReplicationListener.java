@@ -1,13 +1,24 @@
 package app.repo;
 
+import app.config.RabbitConfig;
 import app.model.ChatMessage;
+import app.model.ReplicationMessage;
+import app.service.ConversationCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.ImmediateRequeueAmqpException;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.dao.NonTransientDataAccessException;
 import org.springframework.stereotype.Component;
-import app.repo.ChatMessageRepository;
 
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Map;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Listens to replication messages broadcast via the fanout exchange.
@@ -15,60 +26,93 @@ import java.util.Optional;
  * Each instance of the application has its own auto-generated replication queue,
  * bound to the same fanout exchange. When one instance publishes a message to the
  * exchange, *all* instances receive it here to keep their local databases consistent.
+ *
+ * Messages are drained in batches and applied with a single batched upsert in one
+ * transaction; the container acks the batch only after that transaction commits.
+ *
+ * If the database rejects the batch, its rows are applied one by one so the good ones still
+ * commit, and each rejected row is parked on {@value RabbitConfig#REPL_DEAD_EXCHANGE}.
+ * Transient failures requeue the batch. A batch with a message that cannot even be decoded
+ * is rejected by the container and dead-lettered by the broker; replaying it is harmless,
+ * as applying a message twice changes nothing.
  */
 @Component
 public class ReplicationListener {
 
-    private final ChatMessageRepository repo;
+    private static final Logger log = LoggerFactory.getLogger(ReplicationListener.class);
+
+    private final ChatMessageBatchWriter writer;
+    private final ConversationCache conversationCache;
+    private final RabbitTemplate rabbitTemplate;
+    private final Timer applyLag;
+    private final Counter deadLettered;
 
-    public ReplicationListener(ChatMessageRepository repo) {
-        this.repo = repo;
+    public ReplicationListener(ChatMessageBatchWriter writer, ConversationCache conversationCache,
+                               RabbitTemplate rabbitTemplate, MeterRegistry registry) {
+        this.writer = writer;
+        this.conversationCache = conversationCache;
+        this.rabbitTemplate = rabbitTemplate;
+        this.applyLag = Timer.builder("chat.replication.apply_lag")
+                .description("Time from a message's creation to it being applied on this node")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.deadLettered = Counter.builder("chat.replication.dead_lettered")
+                .description("Replicated messages the database rejected, parked on the dead-letter queue")
+                .register(registry);
     }
 
     /**
-     * Handles replicated messages broadcast through the fanout exchange.
+     * Handles a batch of replicated messages broadcast through the fanout exchange.
      * The queue name is dynamically resolved from the replicationQueue bean.
      */
-    @RabbitListener(queues = "#{replicationQueue.name}")
-    public void onReplicate(Map<String, Object> payload) {
-        try {
-            // Extract message fields
-            String id = (String) payload.get("id");
-            String userId = (String) payload.get("userId");
-            String role = (String) payload.get("role");
-            String content = (String) payload.get("content");
-            String createdAtStr = (String) payload.get("createdAt");
-
-            if (id == null || userId == null || content == null || createdAtStr == null) {
-                System.err.println("⚠️ Invalid replication payload: " + payload);
-                return;
+    @RabbitListener(id = "replicationListener", queues = "#{replicationQueue.name}",
+            containerFactory = "replicationListenerContainerFactory",
+            autoStartup = "false") // started by ReplicationBootstrap
+    public void onReplicate(List<ReplicationMessage> payloads) {
+        List<ReplicationMessage> valid = new ArrayList<>(payloads.size());
+        List<ChatMessage> batch = new ArrayList<>(payloads.size());
+        for (ReplicationMessage payload : payloads) {
+            if (payload == null || !payload.isComplete()) {
+                log.warn("Skipping invalid replication payload {}", payload);
+                continue;
             }
+            valid.add(payload);
+            batch.add(payload.toChatMessage());
+        }
 
-            Instant createdAt = Instant.parse(createdAtStr);
+        List<ChatMessage> applied;
+        try {
+            applied = writer.upsertNewer(batch);
+        } catch (NonTransientDataAccessException e) {
+            // One bad row rolls back the whole batch: retry row by row to isolate it
+            log.warn("Replication batch of {} rejected, applying row by row: {}", batch.size(), e.getMessage());
+            applied = applyEach(valid);
+        } catch (RuntimeException e) {
+            throw new ImmediateRequeueAmqpException("Replication batch failed, requeueing", e);
+        }
+        applied.forEach(conversationCache::append);
 
-            // Check for existing message in local DB
-            Optional<ChatMessage> existing = repo.findById(id);
+        Instant now = Instant.now();
+        applied.forEach(msg -> applyLag.record(Duration.between(msg.getCreatedAt(), now)));
+        log.debug("Replicated applied={} received={}", applied.size(), payloads.size());
+    }
 
-            if (existing.isEmpty()) {
-                // Insert new message if not found
-                ChatMessage msg = new ChatMessage(id, userId, role, content, createdAt);
-                repo.save(msg);
-                System.out.println("🟢 Replicated new message from user " + userId);
-            } else {
-                // Update if newer
-                ChatMessage ex = existing.get();
-                if (ex.getCreatedAt() == null || createdAt.isAfter(ex.getCreatedAt())) {
-                    ex.setContent(content);
-                    ex.setRole(role);
-                    ex.setCreatedAt(createdAt);
-                    ex.setUserId(userId);
-                    repo.save(ex);
-                    System.out.println("🟡 Updated existing replicated message for user " + userId);
-                }
+    /**
+     * Applies each message in its own transaction; rows the database rejects are dead-lettered.
+     */
+    private List<ChatMessage> applyEach(List<ReplicationMessage> payloads) {
+        List<ChatMessage> applied = new ArrayList<>();
+        for (ReplicationMessage payload : payloads) {
+            try {
+                applied.addAll(writer.upsertNewer(List.of(payload.toChatMessage())));
+            } catch (NonTransientDataAccessException e) {
+                log.error("Dead-lettering replication message id={}: {}", payload.id(), e.getMessage());
+                rabbitTemplate.convertAndSend(RabbitConfig.REPL_DEAD_EXCHANGE, "", payload);
+                deadLettered.increment();
+            } catch (RuntimeException e) {
+                throw new ImmediateRequeueAmqpException("Replication row failed, requeueing", e);
             }
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.err.println("❌ Error in ReplicationListener: " + ex.getMessage());
         }
+        return applied;
     }
 }
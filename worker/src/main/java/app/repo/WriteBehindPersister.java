@@ -0,0 +1,163 @@
+package app.repo;
+
+import app.model.ChatMessage;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind persister for newly created messages.
+ *
+ * Callers enqueue a message and get a future instead of waiting on the database. A
+ * single flusher thread collects queued messages into group commits of up to
+ * {@code batch-size} rows, waiting at most {@code window-ms} after the first one, and
+ * writes each group with one {@link ChatMessageBatchWriter#upsertNewer} transaction.
+ *
+ * Durability does not rest on this queue: every message accepted here has also been
+ * published (persistent) to the replication exchange, whose durable per-node queue
+ * includes this node's own. A message lost by a crash before its group commit is
+ * therefore applied again from that queue on restart. On shutdown the queue is drained.
+ */
+@Component
+public class WriteBehindPersister {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindPersister.class);
+
+    private final ChatMessageBatchWriter writer;
+    private final int batchSize;
+    private final long windowNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final Timer flushTimer;
+    private final DistributionSummary batchSizes;
+
+    public WriteBehindPersister(ChatMessageBatchWriter writer,
+                                MeterRegistry registry,
+                                @Value("${chat.persist.batch-size:256}") int batchSize,
+                                @Value("${chat.persist.window-ms:5}") long windowMillis,
+                                @Value("${chat.persist.queue-capacity:10000}") int queueCapacity) {
+        this.writer = writer;
+        this.batchSize = Math.max(1, batchSize);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.queue = new ArrayBlockingQueue<>(Math.max(this.batchSize, queueCapacity));
+
+        this.flushTimer = Timer.builder("chat.persist.flush")
+                .description("Duration of one group commit")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.batchSizes = DistributionSummary.builder("chat.persist.batch.size")
+                .description("Messages written per group commit")
+                .register(registry);
+        Gauge.builder("chat.persist.pending", queue, BlockingQueue::size).register(registry);
+
+        this.flusher = new Thread(this::run, "write-behind-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues a message for the next group commit. Blocks only while the queue is full,
+     * which applies back-pressure to callers when the database falls behind.
+     *
+     * @return completed once the message's group has committed
+     */
+    public CompletableFuture<Void> submit(ChatMessage msg) {
+        Pending pending = new Pending(msg, new CompletableFuture<>());
+        if (!running) {
+            // Shutting down: write through rather than lose the message
+            flush(List.of(pending));
+            return pending.future();
+        }
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.future().completeExceptionally(e);
+        }
+        return pending.future();
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !running) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Treated as a shutdown request; the loop drains what is left
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        List<ChatMessage> messages = new ArrayList<>(batch.size());
+        batch.forEach(p -> messages.add(p.message()));
+        long start = System.nanoTime();
+        try {
+            writer.upsertNewer(messages);
+            flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            batchSizes.record(messages.size());
+            batch.forEach(p -> p.future().complete(null));
+        } catch (RuntimeException e) {
+            log.error("Group commit failed messages={}", messages.size(), e);
+            batch.forEach(p -> p.future().completeExceptionally(e));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        // Not interrupted: an interrupt during H2 file I/O closes the database file
+        running = false;
+        flusher.join(TimeUnit.SECONDS.toMillis(30));
+        if (flusher.isAlive()) {
+            log.warn("Write-behind queue not drained on shutdown pending={}", queue.size());
+            return;
+        }
+        // Anything that raced with the flusher's exit
+        List<Pending> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            flush(rest);
+        }
+    }
+
+    private record Pending(ChatMessage message, CompletableFuture<Void> future) {}
+}
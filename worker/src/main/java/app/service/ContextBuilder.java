@@ -0,0 +1,127 @@
+package app.service;
+
+import app.model.ChatMessage;
+import app.model.ConversationSummary;
+import app.repo.ConversationSummaryRepository;
+import com.openai.models.chat.completions.ChatCompletionCreateParams;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Assembles the role-separated messages sent to the LLM for one request.
+ *
+ * The prompt is the user's rolling summary (as a system message), followed by as many
+ * of the most recent turns as fit the token budget, followed by the new user message.
+ * Turns that fall out of the budget and are not yet covered by the summary are handed
+ * to the {@link ConversationSummarizer}, so long conversations are not re-sent in full.
+ */
+@Component
+public class ContextBuilder {
+
+    private final ConversationSummaryRepository summaries;
+    private final ConversationSummarizer summarizer;
+    private final int maxTokens;
+
+    // Summaries of recently active users; empty Optional caches "no summary yet"
+    private final Map<String, Optional<ConversationSummary>> summaryCache;
+
+    public ContextBuilder(ConversationSummaryRepository summaries,
+                          ConversationSummarizer summarizer,
+                          @Value("${chat.context.max-tokens:3000}") int maxTokens,
+                          @Value("${chat.history.cache.max-users:10000}") int maxUsers) {
+        this.summaries = summaries;
+        this.summarizer = summarizer;
+        this.maxTokens = maxTokens;
+        this.summaryCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Optional<ConversationSummary>> eldest) {
+                return size() > maxUsers;
+            }
+        });
+    }
+
+    /**
+     * Builds the context for a new user message (or several coalesced ones).
+     *
+     * @param history    recent history, oldest first
+     * @param excludeIds ids of the incoming messages, skipped if they are already in the history
+     * @param content    the incoming user message(s)
+     */
+    public Context build(String userId, List<ChatMessage> history, Collection<String> excludeIds, String content) {
+        ConversationSummary summary = summaryFor(userId);
+        Instant coveredUntil = summary != null ? summary.getCoveredUntil() : null;
+        String summaryText = summary != null ? summary.getSummary() : null;
+
+        int budget = maxTokens - TokenEstimator.estimateMessage(content);
+        if (summaryText != null) {
+            budget -= TokenEstimator.estimateMessage(summaryText);
+        }
+
+        // Walk newest to oldest, keeping turns while they fit
+        List<ChatMessage> recent = new ArrayList<>();
+        List<ChatMessage> overflow = new ArrayList<>();
+        for (int i = history.size() - 1; i >= 0; i--) {
+            ChatMessage msg = history.get(i);
+            if (msg.getContent() == null || (msg.getId() != null && excludeIds.contains(msg.getId()))) {
+                continue;
+            }
+            if (coveredUntil != null && !msg.getCreatedAt().isAfter(coveredUntil)) {
+                break; // this and everything older is already in the summary
+            }
+            int cost = TokenEstimator.estimateMessage(msg.getContent());
+            if (overflow.isEmpty() && cost <= budget) {
+                budget -= cost;
+                recent.add(msg);
+            } else {
+                overflow.add(msg);
+            }
+        }
+        Collections.reverse(recent);
+        Collections.reverse(overflow);
+
+        if (!overflow.isEmpty()) {
+            summarizer.fold(userId, summary, overflow, saved -> summaryCache.put(userId, Optional.of(saved)));
+        }
+
+        return new Context(summaryText, recent, content, overflow.isEmpty());
+    }
+
+    private ConversationSummary summaryFor(String userId) {
+        Optional<ConversationSummary> cached = summaryCache.get(userId);
+        if (cached == null) {
+            cached = summaries.findById(userId);
+            summaryCache.put(userId, cached);
+        }
+        return cached.orElse(null);
+    }
+
+    /**
+     * Role-separated prompt for one request. {@code complete} is false when older turns that
+     * the summary does not cover yet were left out for the budget.
+     */
+    public record Context(String summary, List<ChatMessage> turns, String content, boolean complete) {
+
+        public void applyTo(ChatCompletionCreateParams.Builder builder) {
+            if (summary != null && !summary.isBlank()) {
+                builder.addSystemMessage("Summary of the earlier conversation:\n" + summary);
+            }
+            for (ChatMessage msg : turns) {
+                if (ChatMessage.isAssistant(msg.getRole())) {
+                    builder.addAssistantMessage(msg.getContent());
+                } else {
+                    builder.addUserMessage(msg.getContent());
+                }
+            }
+            builder.addUserMessage(content);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package app.service;
+
+import app.model.ChatMessage;
+import app.repo.ChatMessageStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of recent conversation history per user.
+ *
+ * Each user keeps a ring buffer of their last N messages (oldest first).
+ * Users are evicted in least-recently-used order once the cache holds more
+ * than the configured number of conversations. A miss warms the entry from
+ * history store; after that the entry is kept current through {@link #append},
+ * which is called for every message this worker saves or replicates.
+ */
+@Component
+public class ConversationCache {
+
+    private final ChatMessageStore store;
+    private final int maxUsers;
+    private final int messagesPerUser;
+
+    private final Map<String, Entry> conversations;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Timer loadTimer;
+
+    public ConversationCache(ChatMessageStore store,
+                             MeterRegistry registry,
+                             @Value("${chat.history.cache.max-users:10000}") int maxUsers,
+                             @Value("${chat.history.cache.messages-per-user:100}") int messagesPerUser) {
+        this.store = store;
+        this.maxUsers = Math.max(1, maxUsers);
+        this.messagesPerUser = Math.max(1, messagesPerUser);
+
+        this.hits = Counter.builder("chat.history.cache.hits").register(registry);
+        this.misses = Counter.builder("chat.history.cache.misses").register(registry);
+        this.evictions = Counter.builder("chat.history.cache.evictions").register(registry);
+        this.loadTimer = Timer.builder("chat.history.load")
+                .description("Time to warm a conversation from the history store on a cache miss")
+                .publishPercentileHistogram()
+                .register(registry);
+
+        // Access-ordered map: the eldest entry is the least recently used conversation
+        this.conversations = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                boolean evict = size() > ConversationCache.this.maxUsers;
+                if (evict) {
+                    evictions.increment();
+                }
+                return evict;
+            }
+        };
+
+        Gauge.builder("chat.history.cache.users", this, ConversationCache::size).register(registry);
+    }
+
+    /**
+     * Returns the cached history for the user, oldest first.
+     * On a miss the last N messages are loaded from the history store.
+     */
+    public List<ChatMessage> history(String userId) {
+        Entry entry;
+        synchronized (this) {
+            entry = conversations.get(userId);
+            if (entry != null && entry.warm) {
+                hits.increment();
+                return new ArrayList<>(entry.messages);
+            }
+            if (entry == null) {
+                // Placeholder so concurrent appends are not lost while we load
+                entry = new Entry();
+                conversations.put(userId, entry);
+            }
+        }
+
+        misses.increment();
+        List<ChatMessage> loaded = loadTimer.record(() -> store.recent(userId, messagesPerUser));
+
+        synchronized (this) {
+            // Loaded newest first; add oldest first so appends stay at the tail
+            for (int i = loaded.size() - 1; i >= 0; i--) {
+                entry.add(loaded.get(i), messagesPerUser);
+            }
+            entry.warm = true;
+            // Re-insert in case the entry was evicted while loading
+            conversations.putIfAbsent(userId, entry);
+            return new ArrayList<>(entry.messages);
+        }
+    }
+
+    /**
+     * Adds or updates a message in its user's conversation if that conversation is cached.
+     * Uncached users are left alone; they will be warmed from the history store on their next request.
+     */
+    public synchronized void append(ChatMessage msg) {
+        if (msg.getUserId() == null || msg.getCreatedAt() == null) {
+            return;
+        }
+        Entry entry = conversations.get(msg.getUserId());
+        if (entry != null) {
+            entry.add(msg, messagesPerUser);
+        }
+    }
+
+    public synchronized int size() {
+        return conversations.size();
+    }
+
+    /**
+     * Ring buffer of one user's recent messages, ordered by createdAt.
+     */
+    private static final class Entry {
+        private final ArrayDeque<ChatMessage> messages = new ArrayDeque<>();
+        private boolean warm;
+
+        void add(ChatMessage msg, int capacity) {
+            // Replace an existing copy (replication updates, duplicates from our own publishes)
+            for (Iterator<ChatMessage> it = messages.iterator(); it.hasNext(); ) {
+                ChatMessage existing = it.next();
+                if (existing.getId() != null && existing.getId().equals(msg.getId())) {
+                    it.remove();
+                    break;
+                }
+            }
+
+            if (messages.isEmpty() || !msg.getCreatedAt().isBefore(messages.peekLast().getCreatedAt())) {
+                messages.addLast(msg);
+            } else {
+                // Out-of-order arrival: insert at its chronological position
+                ArrayDeque<ChatMessage> tail = new ArrayDeque<>();
+                while (!messages.isEmpty() && msg.getCreatedAt().isBefore(messages.peekLast().getCreatedAt())) {
+                    tail.addFirst(messages.pollLast());
+                }
+                messages.addLast(msg);
+                messages.addAll(tail);
+            }
+
+            while (messages.size() > capacity) {
+                messages.pollFirst();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package app.service;
+
+import app.model.ChatMessage;
+import app.model.ConversationSummary;
+import app.repo.ConversationSummaryRepository;
+import com.openai.client.OpenAIClient;
+import com.openai.models.ChatModel;
+import com.openai.models.chat.completions.ChatCompletionCreateParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Folds turns that no longer fit the context budget into the user's persisted rolling summary.
+ *
+ * Summarization runs asynchronously and at most once per user at a time; the request that
+ * triggered it proceeds with the previous summary.
+ */
+@Component
+public class ConversationSummarizer {
+
+    private static final Logger log = LoggerFactory.getLogger(ConversationSummarizer.class);
+
+    private static final String INSTRUCTIONS =
+            "You maintain a running summary of a medical triage conversation. " +
+            "Merge the existing summary with the new turns. Keep symptoms, onset, duration, " +
+            "severity, red flags, relevant history and any advice already given. " +
+            "Write plain prose, no more than %d words.";
+
+    private final OpenAIClient client;
+    private final ConversationSummaryRepository repo;
+    private final boolean enabled;
+    private final String model;
+    private final int maxWords;
+
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    public ConversationSummarizer(OpenAIClient client,
+                                  ConversationSummaryRepository repo,
+                                  @Value("${chat.context.summary.enabled:true}") boolean enabled,
+                                  @Value("${chat.context.summary.model:gpt-4.1-mini}") String model,
+                                  @Value("${chat.context.summary.max-words:250}") int maxWords) {
+        this.client = client;
+        this.repo = repo;
+        this.enabled = enabled;
+        this.model = model;
+        this.maxWords = maxWords;
+    }
+
+    /**
+     * Merges {@code turns} (oldest first) into {@code previous} and persists the result.
+     * {@code onSaved} is invoked with the new summary once it has been stored.
+     */
+    public void fold(String userId, ConversationSummary previous, List<ChatMessage> turns,
+                     Consumer<ConversationSummary> onSaved) {
+        if (!enabled || turns.isEmpty() || !inFlight.add(userId)) {
+            return;
+        }
+
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("Existing summary:\n")
+                .append(previous != null ? previous.getSummary() : "(none)")
+                .append("\n\nNew turns:\n");
+        for (ChatMessage msg : turns) {
+            prompt.append(msg.getRole()).append(": ").append(msg.getContent()).append("\n");
+        }
+        Instant coveredUntil = turns.get(turns.size() - 1).getCreatedAt();
+
+        var params = ChatCompletionCreateParams.builder()
+                .addSystemMessage(String.format(INSTRUCTIONS, maxWords))
+                .addUserMessage(prompt.toString())
+                .model(ChatModel.of(model))
+                .build();
+
+        client.async().chat().completions().create(params)
+                .thenAccept(completion -> {
+                    String text = completion.choices().get(0).message().content().orElse("").trim();
+                    if (text.isEmpty()) {
+                        return;
+                    }
+                    ConversationSummary summary = new ConversationSummary(userId, text, coveredUntil, Instant.now());
+                    repo.save(summary);
+                    onSaved.accept(summary);
+                })
+                .whenComplete((unused, error) -> {
+                    inFlight.remove(userId);
+                    if (error != null) {
+                        log.warn("Summarization failed user={}: {}", userId, error.getMessage());
+                    }
+                });
+    }
+}
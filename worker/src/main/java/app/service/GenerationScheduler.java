@@ -0,0 +1,227 @@
+package app.service;
+
+import app.model.TriagePriority;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caps the number of concurrent LLM generations on this worker and shares the
+ * available slots across priority lanes and, within a lane, round-robin across users.
+ *
+ * Each user has a FIFO of pending generations and at most one generation running
+ * at a time, which also keeps replies for the same user in order; an urgent message
+ * is moved ahead of the user's less urgent pending ones. A user waits in the lane of
+ * their most urgent pending message. Lanes are picked by smooth weighted round-robin
+ * ({@code chat.worker.lane-weights.*}), so urgent work goes first without starving
+ * routine work. On top of {@code max-in-flight}, {@code urgent-slots} slots are only
+ * used by urgent generations, so an urgent message starts right away even when every
+ * regular slot is busy.
+ *
+ * Deliveries that have not been started yet stay unacked, so the broker's prefetch
+ * limit (see {@code RabbitConfig}) bounds how much work this worker takes from the queues.
+ */
+@Component
+public class GenerationScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationScheduler.class);
+    private static final TriagePriority[] LANES = TriagePriority.values();
+
+    /**
+     * A unit of work that must call {@code done} exactly once when it has finished.
+     */
+    @FunctionalInterface
+    public interface Task {
+        void run(Runnable done);
+    }
+
+    private record Pending(TriagePriority lane, Task task) {}
+
+    private final int maxInFlight;
+    private final int urgentSlots;
+    private final int[] weights = new int[LANES.length];
+    private final int[] credits = new int[LANES.length];
+
+    private final Map<String, ArrayDeque<Pending>> pending = new HashMap<>();
+    // Users with pending work and none running, in the lane of their most urgent pending task
+    private final Map<TriagePriority, ArrayDeque<String>> ready = new EnumMap<>(TriagePriority.class);
+    private final Map<String, TriagePriority> running = new HashMap<>();
+    private final int[] pendingByLane = new int[LANES.length];
+    private final int[] runningByLane = new int[LANES.length];
+
+    public GenerationScheduler(MeterRegistry registry,
+                               @Value("${chat.worker.max-in-flight:8}") int maxInFlight,
+                               @Value("${chat.worker.urgent-slots:2}") int urgentSlots,
+                               @Value("${chat.worker.lane-weights.urgent:8}") int urgentWeight,
+                               @Value("${chat.worker.lane-weights.high:3}") int highWeight,
+                               @Value("${chat.worker.lane-weights.routine:1}") int routineWeight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.urgentSlots = Math.max(0, urgentSlots);
+        weights[TriagePriority.URGENT.ordinal()] = Math.max(1, urgentWeight);
+        weights[TriagePriority.HIGH.ordinal()] = Math.max(1, highWeight);
+        weights[TriagePriority.ROUTINE.ordinal()] = Math.max(1, routineWeight);
+
+        for (TriagePriority lane : LANES) {
+            ready.put(lane, new ArrayDeque<>());
+            Gauge.builder("chat.generations.in_flight", this, s -> s.inFlight(lane))
+                    .tag("lane", lane.tag())
+                    .register(registry);
+            Gauge.builder("chat.generations.pending", this, s -> s.pending(lane))
+                    .tag("lane", lane.tag())
+                    .register(registry);
+        }
+    }
+
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Queues a generation for the given user and starts it as soon as a slot is free
+     * and it is that user's and that lane's turn.
+     */
+    public void submit(String userId, TriagePriority lane, Task task) {
+        List<Runnable> toStart;
+        synchronized (this) {
+            ArrayDeque<Pending> queue = pending.computeIfAbsent(userId, k -> new ArrayDeque<>());
+            TriagePriority before = queue.isEmpty() ? null : queue.peekFirst().lane();
+            enqueue(queue, new Pending(lane, task));
+            pendingByLane[lane.ordinal()]++;
+            if (!running.containsKey(userId)) {
+                TriagePriority head = queue.peekFirst().lane();
+                if (before == null) {
+                    ready.get(head).addLast(userId);
+                } else if (head != before) {
+                    ready.get(before).remove(userId);
+                    ready.get(head).addLast(userId);
+                }
+            }
+            toStart = dispatch();
+        }
+        toStart.forEach(Runnable::run);
+    }
+
+    public synchronized int inFlight() {
+        return running.size();
+    }
+
+    public synchronized int pending() {
+        int total = 0;
+        for (int count : pendingByLane) {
+            total += count;
+        }
+        return total;
+    }
+
+    public synchronized int inFlight(TriagePriority lane) {
+        return runningByLane[lane.ordinal()];
+    }
+
+    public synchronized int pending(TriagePriority lane) {
+        return pendingByLane[lane.ordinal()];
+    }
+
+    /**
+     * Appends the task behind the user's pending tasks of the same or higher priority.
+     */
+    private static void enqueue(ArrayDeque<Pending> queue, Pending task) {
+        ArrayDeque<Pending> lessUrgent = new ArrayDeque<>();
+        while (!queue.isEmpty() && queue.peekLast().lane().compareTo(task.lane()) > 0) {
+            lessUrgent.addFirst(queue.pollLast());
+        }
+        queue.addLast(task);
+        queue.addAll(lessUrgent);
+    }
+
+    private void finished(String userId) {
+        List<Runnable> toStart;
+        synchronized (this) {
+            TriagePriority lane = running.remove(userId);
+            runningByLane[lane.ordinal()]--;
+            ArrayDeque<Pending> queue = pending.get(userId);
+            if (queue != null) {
+                ready.get(queue.peekFirst().lane()).addLast(userId);
+            }
+            toStart = dispatch();
+        }
+        toStart.forEach(Runnable::run);
+    }
+
+    /**
+     * Claims free slots for the next ready users, picking lanes by weight.
+     * Tasks are returned rather than run so they start outside the lock.
+     */
+    private List<Runnable> dispatch() {
+        List<Runnable> toStart = new ArrayList<>();
+        TriagePriority lane;
+        while ((lane = nextLane()) != null) {
+            String userId = ready.get(lane).pollFirst();
+            ArrayDeque<Pending> queue = pending.get(userId);
+            Pending next = queue.pollFirst();
+            if (queue.isEmpty()) {
+                pending.remove(userId);
+            }
+            pendingByLane[lane.ordinal()]--;
+            runningByLane[lane.ordinal()]++;
+            running.put(userId, lane);
+            toStart.add(() -> start(userId, next.task()));
+        }
+        return toStart;
+    }
+
+    /**
+     * Smooth weighted round-robin over the lanes that have a ready user and a free slot:
+     * each such lane gains its weight in credit, the richest one is picked and pays back
+     * the total, which interleaves lanes in proportion to their weights.
+     */
+    private TriagePriority nextLane() {
+        int total = 0;
+        TriagePriority best = null;
+        for (TriagePriority lane : LANES) {
+            if (ready.get(lane).isEmpty() || !hasSlot(lane)) {
+                continue;
+            }
+            int i = lane.ordinal();
+            credits[i] += weights[i];
+            total += weights[i];
+            if (best == null || credits[i] > credits[best.ordinal()]) {
+                best = lane;
+            }
+        }
+        if (best != null) {
+            credits[best.ordinal()] -= total;
+        }
+        return best;
+    }
+
+    private boolean hasSlot(TriagePriority lane) {
+        int limit = lane == TriagePriority.URGENT ? maxInFlight + urgentSlots : maxInFlight;
+        return running.size() < limit;
+    }
+
+    private void start(String userId, Task task) {
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable done = () -> {
+            if (released.compareAndSet(false, true)) {
+                finished(userId);
+            }
+        };
+        try {
+            task.run(done);
+        } catch (RuntimeException e) {
+            log.error("Generation task failed to start user={}", userId, e);
+            done.run();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package app.service;
+
+import app.repo.ChatMessageStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps only the hot window of {@code chat_message} on the worker.
+ *
+ * Generation only reads a user's latest messages (older turns live on in the
+ * conversation summary), and the producers keep the cold tier, so messages older than
+ * {@code chat.tier.hot-days} are deleted here in batches of {@code batch-size}.
+ */
+@Component
+public class HistoryRetentionService {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoryRetentionService.class);
+
+    private final JdbcTemplate jdbc;
+    private final ChatMessageStore store;
+    private final boolean enabled;
+    private final Duration hotAge;
+    private final int batchSize;
+
+    private final Counter deleted;
+
+    public HistoryRetentionService(JdbcTemplate jdbc, ChatMessageStore store, MeterRegistry registry,
+                                   @Value("${chat.tier.enabled:false}") boolean enabled,
+                                   @Value("${chat.tier.hot-days:30}") int hotDays,
+                                   @Value("${chat.tier.batch-size:5000}") int batchSize) {
+        this.jdbc = jdbc;
+        this.store = store;
+        this.enabled = enabled;
+        this.hotAge = Duration.ofDays(Math.max(1, hotDays));
+        this.batchSize = Math.max(1, batchSize);
+
+        this.deleted = Counter.builder("chat.tier.deleted")
+                .description("Messages removed from chat_message by retention")
+                .register(registry);
+    }
+
+    @Scheduled(initialDelayString = "${chat.tier.interval-ms:3600000}",
+               fixedDelayString = "${chat.tier.interval-ms:3600000}")
+    public void run() {
+        if (!enabled) {
+            return;
+        }
+        Instant cutoff = Instant.now().minus(hotAge);
+        long start = System.currentTimeMillis();
+        long total = 0;
+        try {
+            List<String> ids;
+            do {
+                ids = jdbc.queryForList("SELECT id FROM chat_message WHERE created_at < ? LIMIT ?",
+                        String.class, cutoff, batchSize);
+                if (!ids.isEmpty()) {
+                    total += delete(ids, cutoff);
+                }
+            } while (ids.size() == batchSize);
+            if (total > 0) {
+                log.info("History retention deleted={} tookMs={}", total, System.currentTimeMillis() - start);
+            }
+        } catch (RuntimeException e) {
+            log.warn("History retention failed after deleted={}: {}", total, e.getMessage());
+        }
+    }
+
+    private int delete(List<String> ids, Instant cutoff) {
+        // Re-checked: a row updated by replication since it was read may be hot again
+        int[][] counts = jdbc.batchUpdate("DELETE FROM chat_message WHERE id = ? AND created_at < ?",
+                ids, ids.size(), (ps, id) -> {
+                    ps.setString(1, id);
+                    ps.setObject(2, cutoff);
+                });
+        List<String> removed = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (counts[0][i] != 0) {
+                removed.add(ids.get(i));
+            }
+        }
+        store.removed(removed);
+        deleted.increment(removed.size());
+        return removed.size();
+    }
+}
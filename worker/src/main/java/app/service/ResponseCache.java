@@ -0,0 +1,278 @@
+package app.service;
+
+import app.model.ChatMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of LLM replies keyed on the normalized prompt.
+ *
+ * The key is a SHA-256 over the whole prompt: the summary, every turn and the new user
+ * message, each case-folded with whitespace collapsed, so the same opening questions asked
+ * with different spacing or capitalization share one reply. Only conversations of at most
+ * {@code history-depth} turns, with no older turn left out of the prompt, are cached; a
+ * reply to a longer conversation is specific to the user who had it. Entries are evicted in
+ * least-recently-used order beyond {@code max-entries} and expire after {@code ttl-ms}.
+ * When a file is configured the cache is loaded on startup and written back periodically
+ * and on shutdown.
+ */
+@Component
+public class ResponseCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseCache.class);
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern TOKEN_BOUNDARY = Pattern.compile("(?<=\\s)");
+    private static final int FILE_VERSION = 1;
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final int historyDepth;
+    private final Path file;
+
+    private final Map<String, Entry> entries;
+    private boolean dirty; // guarded by "this"
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer savedLatency;
+
+    public ResponseCache(MeterRegistry registry,
+                         @Value("${chat.response-cache.enabled:true}") boolean enabled,
+                         @Value("${chat.response-cache.max-entries:5000}") int maxEntries,
+                         @Value("${chat.response-cache.ttl-ms:86400000}") long ttlMillis,
+                         @Value("${chat.response-cache.history-depth:2}") int historyDepth,
+                         @Value("${chat.response-cache.file:}") String file) {
+        this.enabled = enabled;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = ttlMillis;
+        this.historyDepth = Math.max(0, historyDepth);
+        this.file = file.isBlank() ? null : Path.of(file);
+
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+
+        this.hits = Counter.builder("chat.response_cache.hits").register(registry);
+        this.misses = Counter.builder("chat.response_cache.misses").register(registry);
+        this.savedLatency = Timer.builder("chat.response_cache.saved_latency")
+                .description("Generation time of the original reply, avoided on each hit")
+                .register(registry);
+        Gauge.builder("chat.response_cache.entries", this, ResponseCache::size).register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Cache key for an assembled context, or null when its replies are not cached.
+     */
+    public String key(ContextBuilder.Context context) {
+        List<ChatMessage> turns = context.turns();
+        if (!context.complete() || turns.size() > historyDepth) {
+            return null;
+        }
+        MessageDigest digest = sha256();
+        update(digest, "s", context.summary());
+        for (ChatMessage msg : turns) {
+            update(digest, ChatMessage.isAssistant(msg.getRole()) ? "a" : "u", msg.getContent());
+        }
+        update(digest, "u", context.content());
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns the cached reply for the key, or null on a miss or an expired entry.
+     */
+    public String get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+                entries.remove(key);
+                dirty = true;
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        savedLatency.record(Duration.ofMillis(entry.generationMillis));
+        return entry.reply;
+    }
+
+    /**
+     * Stores a freshly generated reply along with how long it took to generate.
+     */
+    public void put(String key, String reply, long generationMillis) {
+        if (reply == null || reply.isBlank()) {
+            return;
+        }
+        synchronized (this) {
+            entries.put(key, new Entry(reply, System.currentTimeMillis(), generationMillis));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Splits a cached reply into word-sized tokens for streaming. Whitespace stays
+     * attached to the preceding word, so the tokens concatenate back to the reply.
+     */
+    public static List<String> tokens(String reply) {
+        return List.of(TOKEN_BOUNDARY.split(reply));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @PostConstruct
+    public void load() {
+        if (!enabled || file == null || !Files.exists(file)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION) {
+                log.warn("Ignoring response cache file with unknown version file={}", file);
+                return;
+            }
+            int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    Entry entry = new Entry(readString(in), in.readLong(), in.readLong());
+                    if (!isExpired(entry, now)) {
+                        entries.put(key, entry);
+                    }
+                }
+            }
+            log.info("Loaded cached responses count={} file={}", size(), file);
+        } catch (IOException e) {
+            log.warn("Failed to load response cache file={}: {}", file, e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${chat.response-cache.persist-interval-ms:60000}")
+    public void persist() {
+        if (!enabled || file == null) {
+            return;
+        }
+        List<Map.Entry<String, Entry>> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            // Least recently used first, so reloading restores the access order
+            snapshot = new ArrayList<>();
+            entries.forEach((k, v) -> snapshot.add(Map.entry(k, v)));
+            dirty = false;
+        }
+
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> e : snapshot) {
+                    out.writeUTF(e.getKey());
+                    writeString(out, e.getValue().reply);
+                    out.writeLong(e.getValue().createdAt);
+                    out.writeLong(e.getValue().generationMillis);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            log.warn("Failed to persist response cache file={}: {}", file, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        persist();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return ttlMillis > 0 && now - entry.createdAt > ttlMillis;
+    }
+
+    private static void update(MessageDigest digest, String role, String text) {
+        digest.update(role.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        if (text != null) {
+            digest.update(normalize(text).getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+
+    static String normalize(String text) {
+        return WHITESPACE.matcher(text.strip()).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // writeUTF is limited to 64 KB; replies can be longer
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private record Entry(String reply, long createdAt, long generationMillis) {
+    }
+}
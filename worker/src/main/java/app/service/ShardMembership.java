@@ -0,0 +1,192 @@
+package app.service;
+
+import app.config.RabbitConfig;
+import com.rabbitmq.client.GetResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.CustomExchange;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This worker's place on the consistent-hash ring of shard queues
+ * ({@code chat.process.routing=sharded}).
+ *
+ * Joining: once the application is ready (after {@link ReplicationBootstrap} has started the
+ * process listener) the shard queue is bound to the hash exchange with {@code virtual-nodes}
+ * as its weight, i.e. that many points on the ring; the broker then moves roughly that share
+ * of users to this node.
+ *
+ * Leaving: on shutdown the binding is removed first, so new messages for this node's users
+ * go to the next node on the ring, and the queue is drained for up to {@code drain-timeout-ms}
+ * while queued and running turns finish. Then the {@link TurnCoalescer} is closed, so turns
+ * that have not started are dropped rather than answered after their deliveries have gone
+ * back to the broker, and the listener is stopped. Whatever is still queued after that,
+ * including the deliveries requeued when the listener stops, is handed back to the hash exchange with its user id as
+ * routing key (with publisher confirms), and the empty queue is deleted.
+ *
+ * A node that dies without leaving stays on the ring until its queue expires
+ * ({@code queue-expires-ms}). Meanwhile its queue's messages, old and new, are dead-lettered
+ * to the routine lane after {@code message-ttl-ms} and answered by the other workers, unless
+ * the node comes back with the same node id first.
+ * During a rebalance a user may briefly have messages on two nodes, the old one finishing
+ * what it already had; after that the user's messages are again handled by one node, in order
+ * within a priority: like the scheduler, the queue lets an urgent message overtake the user's
+ * earlier less urgent ones.
+ */
+@Component
+@ConditionalOnProperty(name = "chat.process.routing", havingValue = "sharded")
+public class ShardMembership {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardMembership.class);
+
+    private static final List<String> PROCESS_LISTENERS = List.of("urgentProcessListener", "processListener");
+    private static final int HAND_OFF_BATCH = 100;
+    private static final long CONFIRM_TIMEOUT_MILLIS = 5000;
+
+    private final AmqpAdmin amqpAdmin;
+    private final RabbitTemplate rabbitTemplate;
+    private final RabbitListenerEndpointRegistry listenerRegistry;
+    private final GenerationScheduler scheduler;
+    private final TurnCoalescer coalescer;
+    private final Queue shardQueue;
+    private final Binding binding;
+    private final long drainTimeoutMillis;
+
+    private final Counter handedOff;
+
+    public ShardMembership(AmqpAdmin amqpAdmin, RabbitTemplate rabbitTemplate,
+                           RabbitListenerEndpointRegistry listenerRegistry, GenerationScheduler scheduler,
+                           TurnCoalescer coalescer,
+                           Queue shardQueue, CustomExchange processHashExchange, MeterRegistry registry,
+                           @Value("${chat.process.shard.virtual-nodes:100}") int virtualNodes,
+                           @Value("${chat.process.shard.drain-timeout-ms:30000}") long drainTimeoutMillis) {
+        this.amqpAdmin = amqpAdmin;
+        this.rabbitTemplate = rabbitTemplate;
+        this.listenerRegistry = listenerRegistry;
+        this.scheduler = scheduler;
+        this.coalescer = coalescer;
+        this.shardQueue = shardQueue;
+        this.binding = BindingBuilder.bind(shardQueue).to(processHashExchange)
+                .with(String.valueOf(Math.max(1, virtualNodes))).noargs();
+        this.drainTimeoutMillis = drainTimeoutMillis;
+
+        this.handedOff = Counter.builder("chat.shard.handed_off")
+                .description("Queued messages returned to the hash ring when this worker left it")
+                .register(registry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void join() {
+        try {
+            amqpAdmin.declareBinding(binding);
+            log.info("Joined the process ring: {} with {} virtual nodes",
+                    shardQueue.getName(), binding.getRoutingKey());
+        } catch (AmqpException e) {
+            // The binding is durable, so one failed attempt only delays the join until restart
+            log.error("Could not bind shard queue {} to {}", shardQueue.getName(),
+                    RabbitConfig.PROCESS_HASH_EXCHANGE, e);
+        }
+    }
+
+    @EventListener(ContextClosedEvent.class)
+    public void leave() {
+        String queue = shardQueue.getName();
+        try {
+            amqpAdmin.removeBinding(binding);
+        } catch (AmqpException e) {
+            log.warn("Could not leave the process ring, queued messages stay on {}: {}", queue, e.getMessage());
+            return;
+        }
+        log.info("Left the process ring, draining {}", queue);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        while (!drained(queue) && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        int dropped = coalescer.close();
+        if (dropped > 0) {
+            log.info("Dropped {} turns that had not started, their messages are handed off", dropped);
+        }
+        for (String id : PROCESS_LISTENERS) {
+            var container = listenerRegistry.getListenerContainer(id);
+            if (container != null && container.isRunning()) {
+                container.stop(); // unacked deliveries go back to their queues
+            }
+        }
+        try {
+            int moved = handOff(queue);
+            handedOff.increment(moved);
+            amqpAdmin.deleteQueue(queue, false, true);
+            log.info("Handed {} queued messages back to the process ring", moved);
+        } catch (AmqpException e) {
+            log.warn("Hand-off from {} failed, remaining messages wait for this node: {}", queue, e.getMessage());
+        }
+    }
+
+    private boolean drained(String queue) {
+        QueueInformation info;
+        try {
+            info = amqpAdmin.getQueueInfo(queue);
+        } catch (AmqpException e) {
+            return true; // broker gone: nothing left to wait for
+        }
+        return (info == null || info.getMessageCount() == 0)
+                && coalescer.idle() && scheduler.inFlight() == 0 && scheduler.pending() == 0;
+    }
+
+    /**
+     * Republishes every ready message to the hash exchange, which routes it by its original
+     * routing key (the user id) to the node that now owns the user, or to the routine lane
+     * when no node is left on the ring. Messages are moved in batches, and a batch is acked
+     * only once the broker has confirmed all of its publishes; if that fails, the channel
+     * closes and the batch stays in this queue.
+     */
+    private int handOff(String queue) {
+        Integer moved = rabbitTemplate.execute(channel -> {
+            channel.confirmSelect();
+            int count = 0;
+            while (true) {
+                long lastTag = -1;
+                int batch = 0;
+                GetResponse response;
+                while (batch < HAND_OFF_BATCH && (response = channel.basicGet(queue, false)) != null) {
+                    channel.basicPublish(RabbitConfig.PROCESS_HASH_EXCHANGE, response.getEnvelope().getRoutingKey(),
+                            response.getProps(), response.getBody());
+                    lastTag = response.getEnvelope().getDeliveryTag();
+                    batch++;
+                }
+                if (batch == 0) {
+                    return count;
+                }
+                channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MILLIS);
+                channel.basicAck(lastTag, true);
+                count += batch;
+            }
+        });
+        return moved == null ? 0 : moved;
+    }
+}
@@ -0,0 +1,45 @@
+package app.service;
+
+/**
+ * Local, dependency-free estimate of how many BPE tokens a text will use.
+ *
+ * Words are counted as roughly one token per four characters (at least one),
+ * and every punctuation or symbol character as its own token. This tracks the
+ * OpenAI tokenizers closely enough for budgeting without shipping a vocabulary.
+ */
+public final class TokenEstimator {
+
+    /** Fixed per-message overhead for role and separators in the chat format. */
+    public static final int MESSAGE_OVERHEAD = 4;
+
+    private TokenEstimator() {}
+
+    public static int estimate(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int tokens = 0;
+        int wordLength = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                wordLength++;
+                continue;
+            }
+            tokens += wordTokens(wordLength);
+            wordLength = 0;
+            if (!Character.isWhitespace(c)) {
+                tokens++;
+            }
+        }
+        return tokens + wordTokens(wordLength);
+    }
+
+    public static int estimateMessage(String content) {
+        return estimate(content) + MESSAGE_OVERHEAD;
+    }
+
+    private static int wordTokens(int length) {
+        return length == 0 ? 0 : (length + 3) / 4;
+    }
+}
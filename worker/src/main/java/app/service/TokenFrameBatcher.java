@@ -0,0 +1,173 @@
+package app.service;
+
+import app.config.Tracing;
+import app.model.StreamMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces streamed LLM tokens into micro-batched frames before they are
+ * published to the producer's stream queue.
+ *
+ * A frame is flushed when it reaches the configured token count or character
+ * size, when the time window since its first token elapses, or when the
+ * stream ends. Frames of one stream are always published in order.
+ */
+@Component
+public class TokenFrameBatcher {
+
+    private final RabbitTemplate rabbitTemplate;
+    private final int maxTokens;
+    private final int maxChars;
+    private final long windowMillis;
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "token-frame-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Counter framesSent;
+    private final Counter tokensSent;
+    private final DistributionSummary tokensPerFrame;
+
+    public TokenFrameBatcher(RabbitTemplate rabbitTemplate,
+                             MeterRegistry registry,
+                             @Value("${chat.stream.frame.max-tokens:32}") int maxTokens,
+                             @Value("${chat.stream.frame.max-chars:1024}") int maxChars,
+                             @Value("${chat.stream.frame.window-ms:5}") long windowMillis) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.maxTokens = Math.max(1, maxTokens);
+        this.maxChars = Math.max(1, maxChars);
+        this.windowMillis = windowMillis;
+
+        this.framesSent = Counter.builder("chat.stream.frames.sent")
+                .description("Token frames published to producer stream queues")
+                .register(registry);
+        this.tokensSent = Counter.builder("chat.stream.tokens.sent")
+                .description("Tokens published to producer stream queues")
+                .register(registry);
+        this.tokensPerFrame = DistributionSummary.builder("chat.stream.frame.tokens")
+                .description("Number of tokens carried by each frame")
+                .register(registry);
+    }
+
+    /**
+     * Opens a new frame stream for one generation.
+     * Every frame carries the generation id so the producer can number and replay its tokens,
+     * and the trace id, since frames are often published from the flusher thread.
+     */
+    public TokenStream open(String userId, String streamQueueName, String generationId, String traceId) {
+        return new TokenStream(userId, streamQueueName, generationId, traceId);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+    }
+
+    /**
+     * Buffer of pending tokens for a single generation.
+     * All publishes happen while holding the stream's monitor, so frames and the
+     * final "complete" or "superseded" event leave in the order they were produced;
+     * nothing is published after either.
+     */
+    public final class TokenStream {
+
+        private final String userId;
+        private final String streamQueueName;
+        private final String generationId;
+        private final MessagePostProcessor traceHeader;
+        private final List<String> pending = new ArrayList<>();
+        private int pendingChars;
+        private ScheduledFuture<?> scheduledFlush;
+        private boolean closed;
+
+        private TokenStream(String userId, String streamQueueName, String generationId, String traceId) {
+            this.userId = userId;
+            this.streamQueueName = streamQueueName;
+            this.generationId = generationId;
+            this.traceHeader = Tracing.withTraceId(traceId);
+        }
+
+        public synchronized void add(String token) {
+            if (closed) {
+                return;
+            }
+            pending.add(token);
+            pendingChars += token.length();
+
+            if (windowMillis <= 0 || pending.size() >= maxTokens || pendingChars >= maxChars) {
+                flush();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = flusher.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Publishes any pending tokens as one frame.
+         */
+        public synchronized void flush() {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            List<String> tokens = List.copyOf(pending);
+            pending.clear();
+            pendingChars = 0;
+
+            rabbitTemplate.convertAndSend(streamQueueName, StreamMessage.frame(userId, generationId, tokens), traceHeader);
+
+            framesSent.increment();
+            tokensSent.increment(tokens.size());
+            tokensPerFrame.record(tokens.size());
+        }
+
+        /**
+         * Flushes the last frame and notifies the producer that the stream is complete.
+         */
+        public synchronized void complete() {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+            rabbitTemplate.convertAndSend(streamQueueName, StreamMessage.complete(userId, generationId), traceHeader);
+        }
+
+        /**
+         * Discards pending tokens and tells the producer that this generation was replaced,
+         * so clients drop what they have received of it.
+         */
+        public synchronized void supersede() {
+            if (closed) {
+                return;
+            }
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            pending.clear();
+            pendingChars = 0;
+            closed = true;
+            rabbitTemplate.convertAndSend(streamQueueName, StreamMessage.superseded(userId, generationId), traceHeader);
+        }
+    }
+}
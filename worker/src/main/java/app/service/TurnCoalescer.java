@@ -0,0 +1,428 @@
+package app.service;
+
+import app.model.ControlMessage;
+import app.model.ProcessMessage;
+import app.model.TriagePriority;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups a user's rapid-fire messages into one turn, answered by a single generation.
+ *
+ * A user's first message opens a turn that collects further messages for
+ * {@code window-ms} after the latest one, but no longer than {@code max-wait-ms} after
+ * the first; urgent messages close the window at once. The turn is then queued on the
+ * {@link GenerationScheduler}, and keeps absorbing messages until it starts.
+ *
+ * A message that arrives while the user's turn is generating supersedes it (with
+ * {@code supersede} on): the running generation is cancelled and its messages are carried
+ * into the new turn, so the reply answers all of them and nothing answers an outdated
+ * question. A generation that is already persisting its reply is left to finish.
+ *
+ * A running generation can also be aborted, e.g. when its client has gone away
+ * ({@link #abort}): it stops and keeps what it has generated as a partial reply.
+ *
+ * The messages of a turn are acked or rejected together by whichever generation ends up
+ * answering them; a superseded generation must not touch them (see {@link Turn#claim}).
+ */
+@Component
+public class TurnCoalescer {
+
+    private static final Logger log = LoggerFactory.getLogger(TurnCoalescer.class);
+
+    /**
+     * Acknowledgement of one delivered message.
+     */
+    public interface Acknowledgement {
+        void ack();
+
+        void reject();
+    }
+
+    /**
+     * How to stop a running generation.
+     */
+    public interface Cancellation {
+
+        /**
+         * A newer turn took over the messages: stop without touching them.
+         */
+        void supersede();
+
+        /**
+         * The turn has been claimed on the generation's behalf: stop, persist what was
+         * generated so far and settle the messages.
+         */
+        void abort();
+    }
+
+    /**
+     * Why a running generation was stopped early; a fixed set, so the metric's tag values stay
+     * bounded whatever reason a control message carries.
+     */
+    public enum AbortReason {
+        DISCONNECT("disconnect"),
+        CLIENT_STOP("client_stop"),
+        SUPERSEDED("superseded"),
+        OTHER("other");
+
+        private final String tag;
+
+        AbortReason(String tag) {
+            this.tag = tag;
+        }
+
+        public String tag() {
+            return tag;
+        }
+
+        /**
+         * Maps a cancel reason from a control message.
+         */
+        public static AbortReason of(String reason) {
+            if (ControlMessage.REASON_DISCONNECT.equals(reason)) {
+                return DISCONNECT;
+            }
+            if (ControlMessage.REASON_CLIENT.equals(reason)) {
+                return CLIENT_STOP;
+            }
+            return OTHER;
+        }
+    }
+
+    /**
+     * Runs the generation for a turn; must call {@code done} exactly once when finished.
+     */
+    @FunctionalInterface
+    public interface Runner {
+        void run(Turn turn, List<Part> parts, Runnable done);
+    }
+
+    /**
+     * One user message of a turn, with its trace id and delivery.
+     */
+    public record Part(ProcessMessage message, TriagePriority lane, String traceId, Acknowledgement delivery) {}
+
+    private enum State { COLLECTING, SUBMITTED, RUNNING, FINISHING, SUPERSEDED }
+
+    private final GenerationScheduler scheduler;
+    private final long windowMillis;
+    private final long maxWaitMillis;
+    private final boolean supersede;
+
+    private final Map<String, Turn> open = new HashMap<>(); // latest turn of each user still taking messages
+    private final Map<String, Turn> generating = new HashMap<>(); // cancellable turn of each user
+    private boolean closed; // guarded by this
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "turn-coalescer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Counter coalesced;
+    private final Counter superseded;
+    private final Map<AbortReason, Counter> aborted = new EnumMap<>(AbortReason.class);
+
+    public TurnCoalescer(GenerationScheduler scheduler, MeterRegistry registry,
+                         @Value("${chat.worker.coalesce.window-ms:750}") long windowMillis,
+                         @Value("${chat.worker.coalesce.max-wait-ms:2000}") long maxWaitMillis,
+                         @Value("${chat.worker.coalesce.supersede:true}") boolean supersede) {
+        this.scheduler = scheduler;
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxWaitMillis = Math.max(this.windowMillis, maxWaitMillis);
+        this.supersede = supersede;
+
+        this.coalesced = Counter.builder("chat.generation.coalesced")
+                .description("User messages merged into a turn that already had one")
+                .register(registry);
+        this.superseded = Counter.builder("chat.generation.superseded")
+                .description("Running generations cancelled by a newer user message")
+                .register(registry);
+        for (AbortReason reason : AbortReason.values()) {
+            aborted.put(reason, Counter.builder("chat.generation.aborted")
+                    .description("Running generations stopped before the end of the reply")
+                    .tag("reason", reason.tag())
+                    .register(registry));
+        }
+    }
+
+    /**
+     * Adds a message to the user's open turn, or opens one; {@code runner} generates
+     * the reply once the turn is scheduled.
+     */
+    public void offer(String userId, Part part, Runner runner) {
+        Cancellation cancel = null;
+        Turn toSubmit = null;
+        synchronized (this) {
+            if (closed) {
+                return; // left unacked, requeued when the listener stops
+            }
+            long now = System.nanoTime();
+            List<Part> carried = List.of();
+            int restarted = 0;
+            Turn turn = open.get(userId);
+            if (turn != null && turn.state == State.RUNNING) {
+                if (supersede) {
+                    turn.state = State.SUPERSEDED;
+                    generating.remove(userId, turn);
+                    cancel = turn.cancel;
+                    carried = turn.parts;
+                    restarted = carried.size();
+                    superseded.increment();
+                    aborted.get(AbortReason.SUPERSEDED).increment();
+                }
+                turn = null;
+            } else if (turn != null && turn.state == State.SUBMITTED && part.lane().compareTo(turn.lane) < 0) {
+                // Queued on a slower lane: requeue the whole turn on the new one, the old task skips
+                turn.state = State.SUPERSEDED;
+                carried = turn.parts;
+                restarted = turn.restarted;
+                turn = null;
+            }
+
+            if (turn == null) {
+                turn = new Turn(userId, runner, now);
+                carried.forEach(turn::add);
+                turn.restarted = restarted;
+                open.put(userId, turn);
+            } else {
+                coalesced.increment();
+            }
+            turn.add(part);
+
+            if (turn.state == State.COLLECTING) {
+                long deadline = Math.min(now + TimeUnit.MILLISECONDS.toNanos(windowMillis),
+                        turn.openedAt + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis));
+                if (turn.lane == TriagePriority.URGENT || deadline <= now) {
+                    toSubmit = submitting(turn);
+                } else {
+                    if (turn.flush != null) {
+                        turn.flush.cancel(false);
+                    }
+                    Turn collecting = turn;
+                    turn.flush = timer.schedule(() -> flush(collecting), deadline - now, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        if (cancel != null) {
+            log.debug("Superseding running generation user={}", userId);
+            cancel.supersede();
+        }
+        if (toSubmit != null) {
+            submit(toSubmit);
+        }
+    }
+
+    /**
+     * Aborts the user's running generation if it is {@code generationId} (any, when null).
+     * Turns that have not started generating are left alone.
+     *
+     * @return whether a generation was aborted
+     */
+    public boolean abort(String userId, String generationId, AbortReason reason) {
+        Cancellation cancel;
+        synchronized (this) {
+            Turn turn = generating.get(userId);
+            if (turn == null || turn.state != State.RUNNING
+                    || (generationId != null && !generationId.equals(turn.generationId))) {
+                return false;
+            }
+            turn.claimed();
+            cancel = turn.cancel;
+        }
+        log.debug("Aborting generation user={} generationId={} reason={}", userId, generationId, reason);
+        aborted.get(reason).increment();
+        cancel.abort();
+        return true;
+    }
+
+    /**
+     * Whether no turn is collecting, queued or generating.
+     */
+    public synchronized boolean idle() {
+        return open.isEmpty();
+    }
+
+    /**
+     * Stops taking messages, before the listener stops on a node that hands its queue back.
+     * Turns that have not started generating are dropped and later messages ignored, without
+     * settling their deliveries, which the broker requeues once the listener's channel closes.
+     * Running generations are left to finish.
+     *
+     * @return the number of dropped turns
+     */
+    public int close() {
+        synchronized (this) {
+            closed = true;
+            int dropped = 0;
+            for (Iterator<Turn> it = open.values().iterator(); it.hasNext(); ) {
+                Turn turn = it.next();
+                if (turn.state == State.COLLECTING || turn.state == State.SUBMITTED) {
+                    if (turn.flush != null) {
+                        turn.flush.cancel(false);
+                        turn.flush = null;
+                    }
+                    turn.state = State.SUPERSEDED; // a queued task skips it
+                    it.remove();
+                    dropped++;
+                }
+            }
+            return dropped;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void flush(Turn turn) {
+        Turn toSubmit = null;
+        synchronized (this) {
+            if (turn.state == State.COLLECTING) {
+                toSubmit = submitting(turn);
+            }
+        }
+        if (toSubmit != null) {
+            submit(toSubmit);
+        }
+    }
+
+    // Caller holds the monitor
+    private Turn submitting(Turn turn) {
+        if (turn.flush != null) {
+            turn.flush.cancel(false);
+            turn.flush = null;
+        }
+        turn.state = State.SUBMITTED;
+        return turn;
+    }
+
+    private void submit(Turn turn) {
+        TriagePriority lane;
+        synchronized (this) {
+            lane = turn.lane;
+        }
+        scheduler.submit(turn.userId, lane, done -> start(turn, done));
+    }
+
+    private void start(Turn turn, Runnable done) {
+        List<Part> parts;
+        synchronized (this) {
+            if (turn.state != State.SUBMITTED) {
+                parts = null; // requeued on a faster lane
+            } else {
+                turn.state = State.RUNNING;
+                parts = List.copyOf(turn.parts);
+            }
+        }
+        if (parts == null) {
+            done.run();
+            return;
+        }
+        turn.runner.run(turn, parts, done);
+    }
+
+    /**
+     * A user's batch of messages on its way to one generation.
+     */
+    public final class Turn {
+
+        private final String userId;
+        private final Runner runner;
+        private final long openedAt;
+        // Guarded by the coalescer
+        private final List<Part> parts = new ArrayList<>();
+        private TriagePriority lane = TriagePriority.ROUTINE;
+        private State state = State.COLLECTING;
+        private ScheduledFuture<?> flush;
+        private Cancellation cancel;
+        private String generationId;
+        private int restarted;
+
+        private Turn(String userId, Runner runner, long openedAt) {
+            this.userId = userId;
+            this.runner = runner;
+            this.openedAt = openedAt;
+        }
+
+        public String userId() {
+            return userId;
+        }
+
+        /**
+         * Number of leading parts that were already being answered by a superseded
+         * generation, as opposed to starting for the first time.
+         */
+        public int restarted() {
+            synchronized (TurnCoalescer.this) {
+                return restarted;
+            }
+        }
+
+        // Caller holds the coalescer's monitor
+        private void add(Part part) {
+            parts.add(part);
+            if (part.lane().compareTo(lane) < 0) {
+                lane = part.lane();
+            }
+        }
+
+        /**
+         * Registers the running generation and how to cancel it.
+         *
+         * @return false if the turn was already superseded, in which case the generation
+         *         should stop without touching the turn's messages
+         */
+        public boolean onCancel(String generationId, Cancellation cancel) {
+            synchronized (TurnCoalescer.this) {
+                if (state != State.RUNNING) {
+                    return false;
+                }
+                this.generationId = generationId;
+                this.cancel = cancel;
+                generating.put(userId, this);
+                return true;
+            }
+        }
+
+        /**
+         * Called by the generation before it persists, acks or rejects the turn's messages.
+         * From then on the turn can no longer be superseded, and new messages open a new turn.
+         *
+         * @return false if the turn was superseded and its messages now belong to a newer one
+         */
+        public boolean claim() {
+            synchronized (TurnCoalescer.this) {
+                if (state != State.RUNNING) {
+                    return false;
+                }
+                claimed();
+                return true;
+            }
+        }
+
+        // Caller holds the coalescer's monitor
+        private void claimed() {
+            state = State.FINISHING;
+            open.remove(userId, this);
+            generating.remove(userId, this);
+        }
+    }
+}